@@ -2,6 +2,7 @@ package graphics;
 
 import java.awt.Image;
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
     The Animation class manages a series of images (frames) and
@@ -81,6 +82,116 @@ public class Animation {
     }
 
 
+    /**
+        Looks up every frame of this Animation in a SpriteAtlas,
+        so the frames can be drawn from the atlas sheets. The
+        frames are shared with any clones of this Animation.
+    */
+    public synchronized void setAtlas(SpriteAtlas atlas) {
+        for (int i=0; i<frames.size(); i++) {
+            AnimFrame frame = getFrame(i);
+            frame.region = atlas.getRegion(frame.image);
+        }
+    }
+
+
+    /**
+        Creates a CollisionMask for every frame of this
+        Animation. Masks are looked up in (and added to) the
+        specified map, so images shared by several Animations
+        share one mask.
+    */
+    public synchronized void createCollisionMasks(
+        Map<Image, CollisionMask> masks)
+    {
+        for (int i=0; i<frames.size(); i++) {
+            AnimFrame frame = getFrame(i);
+            CollisionMask mask = masks.get(frame.image);
+            if (mask == null) {
+                mask = new CollisionMask(frame.image);
+                masks.put(frame.image, mask);
+            }
+            frame.mask = mask;
+        }
+    }
+
+
+    /**
+        Extracts the HitBoxes of every frame of this Animation
+        from its CollisionMasks (see HitBoxes.extract()), so
+        createCollisionMasks() must be called first. If attack is
+        true, the first frame is the rest pose the others reach
+        out of. Frames that already have HitBoxes keep them.
+    */
+    public synchronized void createHitBoxes(boolean attack) {
+        CollisionMask restMask = (attack && frames.size() > 0) ?
+            getFrame(0).mask : null;
+        for (int i=0; i<frames.size(); i++) {
+            AnimFrame frame = getFrame(i);
+            if (frame.boxes == null && frame.mask != null) {
+                frame.boxes = HitBoxes.extract(frame.mask, restMask);
+            }
+        }
+    }
+
+
+    /**
+        Sets the HitBoxes of a frame of this Animation, for
+        authored boxes. The frames are shared with any clones of
+        this Animation.
+    */
+    public synchronized void setHitBoxes(int frameIndex,
+        HitBoxes boxes)
+    {
+        getFrame(frameIndex).boxes = boxes;
+    }
+
+
+    /**
+        Gets the HitBoxes of this Animation's current frame.
+        Returns null if this animation has no images, or if the
+        frame has no HitBoxes.
+    */
+    public synchronized HitBoxes getHitBoxes() {
+        if (frames.size() == 0) {
+            return null;
+        }
+        else {
+            return getFrame(currFrameIndex).boxes;
+        }
+    }
+
+
+    /**
+        Gets the CollisionMask of this Animation's current image.
+        Returns null if this animation has no images, or if no
+        masks were created.
+    */
+    public synchronized CollisionMask getCollisionMask() {
+        if (frames.size() == 0) {
+            return null;
+        }
+        else {
+            return getFrame(currFrameIndex).mask;
+        }
+    }
+
+
+    /**
+        Gets the atlas region of this Animation's current image.
+        Returns null if this animation has no images, or if the
+        image is not in a SpriteAtlas.
+    */
+    public synchronized AtlasRegion getRegion() {
+        if (frames.size() == 0) {
+            return null;
+        }
+        else {
+            return getFrame(currFrameIndex).region;
+        }
+    }
+
+
     /**
         Gets this Animation's current image. Returns null if this
         animation has no images.
@@ -104,6 +215,9 @@ public class Animation {
 
         Image image;
         long endTime;
+        AtlasRegion region;
+        CollisionMask mask;
+        HitBoxes boxes;
 
         public AnimFrame(Image image, long endTime) {
             this.image = image;
@@ -0,0 +1,81 @@
+package graphics;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+    An AtlasRegion is a rectangle of a SpriteAtlas sheet that
+    holds one image.
+*/
+public class AtlasRegion {
+
+    private BufferedImage sheet;
+    private BufferedImage image;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+
+    /**
+        Creates a new AtlasRegion for the specified rectangle of
+        a sheet.
+    */
+    public AtlasRegion(BufferedImage sheet, int x, int y,
+        int width, int height)
+    {
+        this.sheet = sheet;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        image = sheet.getSubimage(x, y, width, height);
+    }
+
+
+    /**
+        Gets the sheet this region is in.
+    */
+    public BufferedImage getSheet() {
+        return sheet;
+    }
+
+
+    /**
+        Gets an image of this region. The image shares its
+        pixels with the sheet.
+    */
+    public Image getImage() {
+        return image;
+    }
+
+
+    public int getX() {
+        return x;
+    }
+
+
+    public int getY() {
+        return y;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Draws this region at the specified location, blitting
+        straight from the sheet.
+    */
+    public void draw(Graphics g, int dx, int dy) {
+        g.drawImage(sheet, dx, dy, dx + width, dy + height,
+            x, y, x + width, y + height, null);
+    }
+}
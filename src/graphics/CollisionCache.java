@@ -0,0 +1,149 @@
+package graphics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+    The CollisionCache class remembers the results of
+    CollisionMask tests. Two Sprites that stay in contact for a
+    while (like in a melee fight) are tested with the same pair
+    of animation frames at the same offset over and over, so most
+    tests become a lookup.
+
+    <p>The cache is a fixed number of slots, and a result replaces
+    whatever was in its slot, so it never grows. Each slot is one
+    long holding the key (both mask ids and the offset) and the
+    result, so the cache can be used from several threads at once
+    without locking.
+
+    <p>Masks with an id over MAX_ID, or offsets that don't fit in
+    16 bits, are tested without the cache.
+*/
+public class CollisionCache {
+
+    /**
+        The highest mask id that can be cached.
+    */
+    public static final int MAX_ID = (1 << 15) - 1;
+
+    /**
+        The default number of slots.
+    */
+    public static final int DEFAULT_SIZE = 4096;
+
+    // a slot is VALID | key << 1 | result, or 0 if empty
+    private static final long VALID = 1L << 63;
+
+    private AtomicLongArray slots;
+    private int slotMask;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    /**
+        Creates a new CollisionCache with the default size.
+    */
+    public CollisionCache() {
+        this(DEFAULT_SIZE);
+    }
+
+
+    /**
+        Creates a new CollisionCache. The size is rounded up to a
+        power of two.
+    */
+    public CollisionCache(int size) {
+        int numSlots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        slots = new AtomicLongArray(numSlots);
+        slotMask = numSlots - 1;
+    }
+
+
+    /**
+        Checks if two masks intersect when mask2 is at (dx, dy)
+        relative to mask1, like CollisionMask.intersects(), using
+        the cached result if there is one.
+    */
+    public boolean intersects(CollisionMask mask1, CollisionMask mask2,
+        int dx, int dy)
+    {
+        // test (mask1, mask2) and (mask2, mask1) in the same order
+        if (mask1.getId() > mask2.getId()) {
+            CollisionMask temp = mask1;
+            mask1 = mask2;
+            mask2 = temp;
+            dx = -dx;
+            dy = -dy;
+        }
+        if (mask2.getId() > MAX_ID || dx != (short)dx || dy != (short)dy) {
+            misses.increment();
+            return mask1.intersects(mask2, dx, dy);
+        }
+
+        long key = ((long)mask1.getId() << 47) |
+            ((long)mask2.getId() << 32) |
+            ((dx & 0xffffL) << 16) | (dy & 0xffffL);
+        int slot = hash(key) & slotMask;
+        long value = slots.get(slot);
+        if (value != 0 && ((value & ~VALID) >>> 1) == key) {
+            hits.increment();
+            return (value & 1) != 0;
+        }
+
+        misses.increment();
+        boolean result = mask1.intersects(mask2, dx, dy);
+        slots.lazySet(slot, VALID | (key << 1) | (result ? 1 : 0));
+        return result;
+    }
+
+
+    /**
+        Gets the number of tests answered from the cache.
+    */
+    public long getHits() {
+        return hits.sum();
+    }
+
+
+    /**
+        Gets the number of tests that weren't in the cache.
+    */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+
+    /**
+        Gets the fraction of tests answered from the cache, from
+        0 to 1.
+    */
+    public float getHitRate() {
+        long numHits = getHits();
+        long total = numHits + getMisses();
+        return (total == 0) ? 0 : (float)numHits / total;
+    }
+
+
+    /**
+        Resets the hit and miss counters.
+    */
+    public void resetCounters() {
+        hits.reset();
+        misses.reset();
+    }
+
+
+    /**
+        Removes every result from the cache.
+    */
+    public void clear() {
+        for (int i=0; i<slots.length(); i++) {
+            slots.set(i, 0);
+        }
+    }
+
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int)(key >>> 32);
+    }
+}
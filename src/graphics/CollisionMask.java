@@ -0,0 +1,146 @@
+package graphics;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+    A CollisionMask is a bitmask of the non-transparent pixels of
+    an image, for pixel-perfect collision tests. Each row is
+    packed into longs (bit i of word w is pixel w*64+i), so two
+    masks are tested 64 pixels at a time with a shifted AND.
+
+    <p>Masks are created once when images are loaded; testing two
+    masks doesn't read any pixels or allocate anything. Each mask
+    gets a unique id, so results can be cached (see
+    CollisionCache).
+*/
+public class CollisionMask {
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private int id;
+    private int width;
+    private int height;
+    private int wordsPerRow;
+    private long[] bits;
+
+    /**
+        Creates a CollisionMask from an Image. A pixel is set if
+        its alpha is over 0. The image must be fully loaded.
+    */
+    public CollisionMask(Image image) {
+        BufferedImage buffer;
+        if (image instanceof BufferedImage) {
+            buffer = (BufferedImage)image;
+        }
+        else {
+            buffer = new BufferedImage(image.getWidth(null),
+                image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+            buffer.getGraphics().drawImage(image, 0, 0, null);
+        }
+        id = nextId.getAndIncrement();
+        width = buffer.getWidth();
+        height = buffer.getHeight();
+        wordsPerRow = (width + 63) >> 6;
+        bits = new long[wordsPerRow * height];
+
+        int[] row = new int[width];
+        for (int y=0; y<height; y++) {
+            buffer.getRGB(0, y, width, 1, row, 0, width);
+            int offset = y * wordsPerRow;
+            for (int x=0; x<width; x++) {
+                if ((row[x] >>> 24) != 0) {
+                    bits[offset + (x >> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the unique id of this mask.
+    */
+    public int getId() {
+        return id;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Checks if the pixel at the specified location is set.
+    */
+    public boolean isSet(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        return (bits[y * wordsPerRow + (x >> 6)] & (1L << (x & 63))) != 0;
+    }
+
+
+    /**
+        Checks if this mask and another mask have a set pixel in
+        the same place, when the other mask is drawn at (dx, dy)
+        relative to this one.
+    */
+    public boolean intersects(CollisionMask other, int dx, int dy) {
+        // overlap, in this mask's coordinates
+        int left = Math.max(0, dx);
+        int right = Math.min(width, dx + other.width);
+        int top = Math.max(0, dy);
+        int bottom = Math.min(height, dy + other.height);
+        if (left >= right || top >= bottom) {
+            return false;
+        }
+
+        int firstWord = left >> 6;
+        int lastWord = (right - 1) >> 6;
+        for (int y=top; y<bottom; y++) {
+            int offset = y * wordsPerRow;
+            int otherOffset = (y - dy) * other.wordsPerRow;
+            for (int w=firstWord; w<=lastWord; w++) {
+                long word = bits[offset + w];
+                // only the bits in the overlap
+                if (w == firstWord) {
+                    word &= -1L << (left & 63);
+                }
+                if (w == lastWord && (right & 63) != 0) {
+                    word &= -1L >>> (64 - (right & 63));
+                }
+                if (word != 0 && (word & other.getBits(otherOffset,
+                    (w << 6) - dx)) != 0)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Gets 64 bits of a row of this mask, starting at pixel x
+        (which may be outside the mask).
+    */
+    private long getBits(int offset, int x) {
+        int w = x >> 6;
+        int shift = x & 63;
+        long low = (w >= 0 && w < wordsPerRow) ?
+            bits[offset + w] : 0;
+        if (shift == 0) {
+            return low;
+        }
+        long high = (w + 1 >= 0 && w + 1 < wordsPerRow) ?
+            bits[offset + w + 1] : 0;
+        return (low >>> shift) | (high << (64 - shift));
+    }
+}
@@ -0,0 +1,174 @@
+package graphics;
+
+/**
+    The HitBoxes class holds the combat rectangles of one
+    animation frame: the hurt box (where the frame can be hit)
+    and the hit box (where the frame's attack reaches). Attacks
+    are resolved by testing the attacker's hit box against the
+    defender's hurt box, which is a couple of compares instead of
+    a pixel test.
+
+    <p>Boxes are in the frame's own coordinates. They can be
+    authored, or extracted from a CollisionMask when the images
+    are loaded (see extract()). A box with a width or height of 0
+    is empty and never touches anything.
+*/
+public class HitBoxes {
+
+    // hurt box, then hit box: x, y, width, height
+    private int[] boxes = new int[8];
+
+    /**
+        Creates a new HitBoxes with the specified hurt box and hit
+        box.
+    */
+    public HitBoxes(int hurtX, int hurtY, int hurtWidth, int hurtHeight,
+        int hitX, int hitY, int hitWidth, int hitHeight)
+    {
+        setBox(0, hurtX, hurtY, hurtWidth, hurtHeight);
+        setBox(4, hitX, hitY, hitWidth, hitHeight);
+    }
+
+
+    /**
+        Extracts the boxes of a frame from its CollisionMask. The
+        rest mask is the frame the animation starts from (like the
+        first frame of an attack), or null.
+        <ul>
+        <li>Without a rest mask, both boxes are the bounds of the
+        frame's opaque pixels.
+        <li>With a rest mask, the hurt box is the bounds of the
+        opaque pixels inside the rest frame's bounds (the body),
+        and the hit box is the bounds of the opaque pixels outside
+        it (the weapon). If either part is empty, the bounds of
+        the whole frame are used instead.
+        </ul>
+    */
+    public static HitBoxes extract(CollisionMask mask,
+        CollisionMask restMask)
+    {
+        int[] all = getBounds(mask, null, true);
+        if (restMask == null) {
+            return new HitBoxes(all[0], all[1], all[2], all[3],
+                all[0], all[1], all[2], all[3]);
+        }
+
+        int[] rest = getBounds(restMask, null, true);
+        int[] body = getBounds(mask, rest, true);
+        int[] reach = getBounds(mask, rest, false);
+        if (isEmpty(body)) {
+            body = all;
+        }
+        if (isEmpty(reach)) {
+            reach = all;
+        }
+        return new HitBoxes(body[0], body[1], body[2], body[3],
+            reach[0], reach[1], reach[2], reach[3]);
+    }
+
+
+    public int getHurtX() {
+        return boxes[0];
+    }
+
+
+    public int getHurtY() {
+        return boxes[1];
+    }
+
+
+    public int getHurtWidth() {
+        return boxes[2];
+    }
+
+
+    public int getHurtHeight() {
+        return boxes[3];
+    }
+
+
+    public int getHitX() {
+        return boxes[4];
+    }
+
+
+    public int getHitY() {
+        return boxes[5];
+    }
+
+
+    public int getHitWidth() {
+        return boxes[6];
+    }
+
+
+    public int getHitHeight() {
+        return boxes[7];
+    }
+
+
+    /**
+        Checks if this frame's hit box touches the hurt box of
+        another frame drawn at (dx, dy) relative to this one.
+    */
+    public boolean hits(HitBoxes other, int dx, int dy) {
+        int[] b = other.boxes;
+        return boxes[6] > 0 && boxes[7] > 0 && b[2] > 0 && b[3] > 0 &&
+            boxes[4] < dx + b[0] + b[2] &&
+            dx + b[0] < boxes[4] + boxes[6] &&
+            boxes[5] < dy + b[1] + b[3] &&
+            dy + b[1] < boxes[5] + boxes[7];
+    }
+
+
+    private void setBox(int offset, int x, int y, int width,
+        int height)
+    {
+        boxes[offset] = x;
+        boxes[offset + 1] = y;
+        boxes[offset + 2] = Math.max(0, width);
+        boxes[offset + 3] = Math.max(0, height);
+    }
+
+
+    /**
+        Gets the bounds (x, y, width, height) of the set pixels of
+        a mask that are inside (or outside) the specified area.
+        If the area is null, every pixel counts.
+    */
+    private static int[] getBounds(CollisionMask mask, int[] area,
+        boolean inside)
+    {
+        int left = mask.getWidth();
+        int top = mask.getHeight();
+        int right = 0;
+        int bottom = 0;
+        for (int y=0; y<mask.getHeight(); y++) {
+            for (int x=0; x<mask.getWidth(); x++) {
+                if (mask.isSet(x, y) &&
+                    (area == null || contains(area, x, y) == inside))
+                {
+                    left = Math.min(left, x);
+                    top = Math.min(top, y);
+                    right = Math.max(right, x + 1);
+                    bottom = Math.max(bottom, y + 1);
+                }
+            }
+        }
+        if (right <= left) {
+            return new int[4];
+        }
+        return new int[] { left, top, right - left, bottom - top };
+    }
+
+
+    private static boolean contains(int[] area, int x, int y) {
+        return x >= area[0] && x < area[0] + area[2] &&
+            y >= area[1] && y < area[1] + area[3];
+    }
+
+
+    private static boolean isEmpty(int[] bounds) {
+        return bounds[2] == 0 || bounds[3] == 0;
+    }
+}
@@ -0,0 +1,222 @@
+package graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+    The ImageLoader class loads images and converts them to
+    managed images compatible with a GraphicsConfiguration, so
+    Java2D can cache them in video memory instead of blitting
+    them in software every frame.
+
+    <p>The transparency of each image (opaque, bitmask or
+    translucent) is detected from its alpha values, so opaque
+    backgrounds don't pay for alpha blending and images with
+    only fully transparent or fully opaque pixels can use the
+    cheaper bitmask mode.
+
+    <p>Every loaded image is remembered, so printReport() can
+    list which assets ended up accelerated.
+*/
+public class ImageLoader {
+
+    private static final String[] TRANSPARENCY_NAMES = {
+        "", "opaque", "bitmask", "translucent"
+    };
+
+    private GraphicsConfiguration gc;
+    private ArrayList<String> names;
+    private ArrayList<Image> images;
+
+    /**
+        Creates a new ImageLoader that creates images compatible
+        with the specified GraphicsConfiguration. If gc is null,
+        plain BufferedImages are created instead.
+    */
+    public ImageLoader(GraphicsConfiguration gc) {
+        this.gc = gc;
+        names = new ArrayList<String>();
+        images = new ArrayList<Image>();
+    }
+
+
+    /**
+        Gets the GraphicsConfiguration images are made
+        compatible with. May be null.
+    */
+    public GraphicsConfiguration getGraphicsConfiguration() {
+        return gc;
+    }
+
+
+    /**
+        Loads the specified image file and converts it to a
+        compatible image.
+    */
+    public Image loadImage(String filename) {
+        Image image = decodeImage(filename);
+        addToReport(filename, image);
+        return image;
+    }
+
+
+    /**
+        Loads the specified image file and converts it to a
+        compatible image like loadImage(), but doesn't list it in
+        the report. Images decoded on several threads can be
+        listed in a fixed order afterwards with addToReport().
+    */
+    public Image decodeImage(String filename) {
+        Image image = null;
+        try {
+            image = ImageIO.read(new File(filename));
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        if (image == null) {
+            // let the toolkit try (and give a broken image
+            // if the file doesn't exist)
+            image = new ImageIcon(filename).getImage();
+            if (image.getWidth(null) <= 0) {
+                return image;
+            }
+        }
+        return toCompatibleImage(image);
+    }
+
+
+    /**
+        Lists an image returned by decodeImage() in the report.
+        Images that failed to load aren't listed.
+    */
+    public synchronized void addToReport(String filename,
+        Image image)
+    {
+        if (image.getWidth(null) > 0) {
+            names.add(filename);
+            images.add(image);
+        }
+    }
+
+
+    /**
+        Converts an image to a compatible image using the
+        detected transparency mode.
+    */
+    public Image toCompatibleImage(Image image) {
+        BufferedImage source = toBufferedImage(image);
+        int transparency = getTransparency(source);
+        BufferedImage newImage = createCompatibleImage(
+            source.getWidth(), source.getHeight(), transparency);
+        Graphics2D g = newImage.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+        return newImage;
+    }
+
+
+    /**
+        Creates an empty image compatible with the display,
+        with the specified transparency.
+    */
+    public BufferedImage createCompatibleImage(int w, int h,
+        int transparency)
+    {
+        if (gc != null) {
+            return gc.createCompatibleImage(w, h, transparency);
+        }
+        else if (transparency == Transparency.OPAQUE) {
+            return new BufferedImage(w, h,
+                BufferedImage.TYPE_INT_RGB);
+        }
+        else {
+            return new BufferedImage(w, h,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+    }
+
+
+    /**
+        Gets the transparency mode of an image from its alpha
+        values: Transparency.OPAQUE if every pixel is opaque,
+        Transparency.BITMASK if every pixel is either fully
+        opaque or fully transparent, otherwise
+        Transparency.TRANSLUCENT.
+    */
+    public static int getTransparency(Image image) {
+        BufferedImage buffer = toBufferedImage(image);
+        if (!buffer.getColorModel().hasAlpha()) {
+            return Transparency.OPAQUE;
+        }
+        int width = buffer.getWidth();
+        int[] row = new int[width];
+        int transparency = Transparency.OPAQUE;
+        for (int y=0; y<buffer.getHeight(); y++) {
+            buffer.getRGB(0, y, width, 1, row, 0, width);
+            for (int x=0; x<width; x++) {
+                int alpha = row[x] >>> 24;
+                if (alpha == 0) {
+                    transparency = Transparency.BITMASK;
+                }
+                else if (alpha != 255) {
+                    return Transparency.TRANSLUCENT;
+                }
+            }
+        }
+        return transparency;
+    }
+
+
+    /**
+        Gets the specified image as a BufferedImage, drawing it
+        into a new one if needed.
+    */
+    private static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage) {
+            return (BufferedImage)image;
+        }
+        // make sure the toolkit image is fully loaded
+        image = new ImageIcon(image).getImage();
+        BufferedImage buffer = new BufferedImage(
+            image.getWidth(null), image.getHeight(null),
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = buffer.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return buffer;
+    }
+
+
+    /**
+        Prints which loaded images are currently accelerated.
+        Managed images are usually only cached in video memory
+        after they have been drawn a few times, so this is most
+        useful after the game has been running for a while.
+    */
+    public synchronized void printReport(PrintStream out) {
+        int numAccelerated = 0;
+        for (int i=0; i<images.size(); i++) {
+            Image image = images.get(i);
+            boolean accelerated = (gc != null &&
+                image.getCapabilities(gc).isAccelerated());
+            if (accelerated) {
+                numAccelerated++;
+            }
+            int transparency = ((Transparency)image).getTransparency();
+            out.println((accelerated ? "  accelerated  " :
+                "  software     ") +
+                TRANSPARENCY_NAMES[transparency] + "\t" +
+                names.get(i));
+        }
+        out.println(numAccelerated + " of " + images.size() +
+            " images accelerated");
+    }
+}
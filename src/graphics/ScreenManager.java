@@ -9,10 +9,16 @@ import javax.swing.JFrame;
 /**
     The ScreenManager class manages initializing and displaying
     full screen graphics modes.
+    <p>A headless ScreenManager has no display at all: it draws
+    into an offscreen image of a fixed size instead, so games can
+    run on machines without a screen (for benchmarks and long
+    simulations). It has no window, and setFullScreen() does
+    nothing.
 */
 public class ScreenManager {
 
     private GraphicsDevice device;
+    private BufferedImage offscreen;
 
     /**
         Creates a new ScreenManager object.
@@ -24,11 +30,43 @@ public class ScreenManager {
     }
 
 
+    /**
+        Creates a new headless ScreenManager that draws into an
+        offscreen image of the specified size. No display is
+        needed.
+    */
+    public ScreenManager(int width, int height) {
+        offscreen = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_RGB);
+    }
+
+
+    /**
+        Checks if this ScreenManager is headless (draws into an
+        offscreen image instead of a display).
+    */
+    public boolean isHeadless() {
+        return (offscreen != null);
+    }
+
+
+    /**
+        Gets the image a headless ScreenManager draws into.
+        Returns null if this ScreenManager isn't headless.
+    */
+    public BufferedImage getOffscreenImage() {
+        return offscreen;
+    }
+
+
     /**
         Returns a list of compatible display modes for the
         default device on the system.
     */
     public DisplayMode[] getCompatibleDisplayModes() {
+        if (isHeadless()) {
+            return new DisplayMode[0];
+        }
         return device.getDisplayModes();
     }
 
@@ -40,7 +78,7 @@ public class ScreenManager {
     public DisplayMode findFirstCompatibleMode(
         DisplayMode modes[])
     {
-        DisplayMode goodModes[] = device.getDisplayModes();
+        DisplayMode goodModes[] = getCompatibleDisplayModes();
         for (int i = 0; i < modes.length; i++) {
             for (int j = 0; j < goodModes.length; j++) {
                 if (displayModesMatch(modes[i], goodModes[j])) {
@@ -58,6 +96,9 @@ public class ScreenManager {
         Returns the current display mode.
     */
     public DisplayMode getCurrentDisplayMode() {
+        if (isHeadless()) {
+            return null;
+        }
         return device.getDisplayMode();
     }
 
@@ -108,8 +149,12 @@ public class ScreenManager {
         changed on this system, the current display mode is used.
         <p>
         The display uses a BufferStrategy with 2 buffers.
+        <p>Does nothing if this ScreenManager is headless.
     */
     public void setFullScreen(DisplayMode displayMode) {
+        if (isHeadless()) {
+            return;
+        }
         final JFrame frame = new JFrame();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setUndecorated(true);
@@ -157,6 +202,9 @@ public class ScreenManager {
         The application must dispose of the graphics object.
     */
     public Graphics2D getGraphics() {
+        if (isHeadless()) {
+            return offscreen.createGraphics();
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             BufferStrategy strategy = window.getBufferStrategy();
@@ -172,6 +220,9 @@ public class ScreenManager {
         Updates the display.
     */
     public void update() {
+        if (isHeadless()) {
+            return;
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             BufferStrategy strategy = window.getBufferStrategy();
@@ -190,16 +241,36 @@ public class ScreenManager {
         Returns null if the device is not in full screen mode.
     */
     public JFrame getFullScreenWindow() {
+        if (isHeadless()) {
+            return null;
+        }
         return (JFrame)device.getFullScreenWindow();
     }
 
 
+    /**
+        Gets the GraphicsConfiguration of the full screen
+        window. Returns null if the device is not in full screen
+        mode, or if this ScreenManager is headless.
+    */
+    public GraphicsConfiguration getGraphicsConfiguration() {
+        Window window = getFullScreenWindow();
+        if (window != null) {
+            return window.getGraphicsConfiguration();
+        }
+        return null;
+    }
+
+
     /**
         Returns the width of the window currently used in full
         screen mode. Returns 0 if the device is not in full
         screen mode.
     */
     public int getWidth() {
+        if (isHeadless()) {
+            return offscreen.getWidth();
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             return window.getWidth();
@@ -216,6 +287,9 @@ public class ScreenManager {
         screen mode.
     */
     public int getHeight() {
+        if (isHeadless()) {
+            return offscreen.getHeight();
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             return window.getHeight();
@@ -230,6 +304,9 @@ public class ScreenManager {
         Restores the screen's display mode.
     */
     public void restoreScreen() {
+        if (isHeadless()) {
+            return;
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             window.dispose();
@@ -244,6 +321,12 @@ public class ScreenManager {
     public BufferedImage createCompatibleImage(int w, int h,
         int transparancy)
     {
+        if (isHeadless()) {
+            return new BufferedImage(w, h,
+                (transparancy == Transparency.OPAQUE) ?
+                BufferedImage.TYPE_INT_RGB :
+                BufferedImage.TYPE_INT_ARGB);
+        }
         Window window = device.getFullScreenWindow();
         if (window != null) {
             GraphicsConfiguration gc =
@@ -0,0 +1,129 @@
+package graphics;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+    A SpanImage is an image prepared for fast software drawing
+    into an int[] framebuffer. The pixels are stored as an int[]
+    (RGB), along with the runs of opaque pixels in each row, so
+    drawing is a System.arraycopy() per run and transparent
+    pixels are skipped entirely.
+
+    <p>Transparency is treated as a bitmask: pixels with an alpha
+    of at least 128 are opaque, the rest are transparent.
+*/
+public class SpanImage {
+
+    private int width;
+    private int height;
+    private int[] pixels;
+
+    // runs of row y are runs[rowStart[y]] to runs[rowStart[y+1]],
+    // as pairs of (start x, length)
+    private int[] rowStart;
+    private int[] runs;
+
+    /**
+        Creates a SpanImage from an Image. The image must be
+        fully loaded.
+    */
+    public SpanImage(Image image) {
+        BufferedImage buffer;
+        if (image instanceof BufferedImage) {
+            buffer = (BufferedImage)image;
+        }
+        else {
+            buffer = new BufferedImage(image.getWidth(null),
+                image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+            buffer.getGraphics().drawImage(image, 0, 0, null);
+        }
+        width = buffer.getWidth();
+        height = buffer.getHeight();
+        pixels = buffer.getRGB(0, 0, width, height, null, 0, width);
+
+        // find the opaque runs of each row
+        rowStart = new int[height + 1];
+        int[] rowRuns = new int[width + 1];
+        int[] allRuns = new int[64];
+        int numRuns = 0;
+        boolean hasAlpha = buffer.getColorModel().hasAlpha();
+        for (int y=0; y<height; y++) {
+            rowStart[y] = numRuns * 2;
+            int rowRunCount = 0;
+            int x = 0;
+            int offset = y * width;
+            while (x < width) {
+                while (x < width && hasAlpha &&
+                    (pixels[offset + x] >>> 24) < 128)
+                {
+                    x++;
+                }
+                int start = x;
+                while (x < width && (!hasAlpha ||
+                    (pixels[offset + x] >>> 24) >= 128))
+                {
+                    x++;
+                }
+                if (x > start) {
+                    rowRuns[rowRunCount++] = start;
+                    rowRuns[rowRunCount++] = x - start;
+                }
+            }
+            if ((numRuns * 2) + rowRunCount > allRuns.length) {
+                int[] newRuns = new int[Math.max(allRuns.length * 2,
+                    numRuns * 2 + rowRunCount)];
+                System.arraycopy(allRuns, 0, newRuns, 0, numRuns * 2);
+                allRuns = newRuns;
+            }
+            System.arraycopy(rowRuns, 0, allRuns, numRuns * 2,
+                rowRunCount);
+            numRuns += rowRunCount / 2;
+        }
+        rowStart[height] = numRuns * 2;
+        runs = new int[numRuns * 2];
+        System.arraycopy(allRuns, 0, runs, 0, runs.length);
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Draws this image into a framebuffer at (dx, dy). Only rows
+        from clipTop (inclusive) to clipBottom (exclusive) and
+        columns from 0 to frameWidth are drawn.
+    */
+    public void draw(int[] frame, int frameWidth, int dx, int dy,
+        int clipTop, int clipBottom)
+    {
+        int firstY = Math.max(0, clipTop - dy);
+        int lastY = Math.min(height, clipBottom - dy);
+        for (int y=firstY; y<lastY; y++) {
+            int srcOffset = y * width;
+            int dstOffset = (dy + y) * frameWidth;
+            for (int i=rowStart[y]; i<rowStart[y+1]; i+=2) {
+                int start = runs[i];
+                int end = start + runs[i+1];
+                // clip to the frame
+                if (dx + start < 0) {
+                    start = -dx;
+                }
+                if (dx + end > frameWidth) {
+                    end = frameWidth - dx;
+                }
+                if (start < end) {
+                    System.arraycopy(pixels, srcOffset + start,
+                        frame, dstOffset + dx + start, end - start);
+                }
+            }
+        }
+    }
+}
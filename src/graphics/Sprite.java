@@ -8,10 +8,24 @@ public class Sprite {
     // position (pixels)
     protected float x;
     protected float y;
+    // position before the last update (pixels)
+    protected float prevX;
+    protected float prevY;
     // velocity (pixels per millisecond)
     protected float dx;
     protected float dy;
     protected float maxSpeed = .3f;
+    // notified when the position changes, or null
+    private MoveListener moveListener;
+
+    /**
+        A MoveListener is notified when a Sprite's position is
+        changed with setX(), setY() or update().
+    */
+    public interface MoveListener {
+        public void spriteMoved(Sprite sprite);
+    }
+
     /**
         Creates a new Sprite object with the specified Animation.
     */
@@ -27,6 +41,9 @@ public class Sprite {
         x += dx * elapsedTime;
         y += dy * elapsedTime;
         anim.update(elapsedTime);
+        if (moveListener != null) {
+            moveListener.spriteMoved(this);
+        }
     }
     
     public float getMaxSpeed() {
@@ -52,6 +69,9 @@ public class Sprite {
     */
     public void setX(float x) {
         this.x = x;
+        if (moveListener != null) {
+            moveListener.spriteMoved(this);
+        }
     }
 
     /**
@@ -59,6 +79,53 @@ public class Sprite {
     */
     public void setY(float y) {
         this.y = y;
+        if (moveListener != null) {
+            moveListener.spriteMoved(this);
+        }
+    }
+
+    /**
+        Sets the MoveListener notified when this Sprite moves, or
+        null for none. A Sprite has at most one MoveListener.
+    */
+    public void setMoveListener(MoveListener moveListener) {
+        this.moveListener = moveListener;
+    }
+
+    /**
+        Gets the MoveListener of this Sprite, or null if it has
+        none.
+    */
+    public MoveListener getMoveListener() {
+        return moveListener;
+    }
+
+    /**
+        Remembers the current position as the previous position,
+        for drawing in between updates. Should be called before
+        each update.
+    */
+    public void savePosition() {
+        prevX = x;
+        prevY = y;
+    }
+
+    /**
+        Gets the x position in between the previous and current
+        positions. An interpolation of 0 is the previous
+        position, and 1 is the current position.
+    */
+    public float getInterpolatedX(float interpolation) {
+        return prevX + (x - prevX) * interpolation;
+    }
+
+    /**
+        Gets the y position in between the previous and current
+        positions. An interpolation of 0 is the previous
+        position, and 1 is the current position.
+    */
+    public float getInterpolatedY(float interpolation) {
+        return prevY + (y - prevY) * interpolation;
     }
 
     /**
@@ -116,6 +183,32 @@ public class Sprite {
         return anim.getImage();
     }
 
+    /**
+        Gets the atlas region of this Sprite's current image, or
+        null if the image is not in a SpriteAtlas.
+    */
+    public AtlasRegion getAtlasRegion() {
+        return anim.getRegion();
+    }
+
+
+    /**
+        Gets the CollisionMask of this Sprite's current image,
+        or null if it has none.
+    */
+    public CollisionMask getCollisionMask() {
+        return anim.getCollisionMask();
+    }
+
+
+    /**
+        Gets the HitBoxes of this Sprite's current frame, or null
+        if it has none.
+    */
+    public HitBoxes getHitBoxes() {
+        return anim.getHitBoxes();
+    }
+
     /**
         Clones this Sprite. Does not clone position or velocity
         info.
@@ -0,0 +1,141 @@
+package graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+    The SpriteAtlas class packs many small images (animation
+    frames) into a few large sheets. Each image becomes an
+    AtlasRegion of a sheet, and the original image can be thrown
+    away. Fewer, larger images have less per-image overhead and
+    are easier for Java2D to keep in video memory.
+
+    <p>Images are packed in rows ("shelves"): each image is put
+    to the right of the previous one, and a new row is started
+    below the tallest image of the current row when the sheet is
+    full across. A new sheet is started when a sheet is full.
+*/
+public class SpriteAtlas {
+
+    /**
+        The default width and height of a sheet.
+    */
+    public static final int DEFAULT_SHEET_SIZE = 2048;
+
+    private ImageLoader imageLoader;
+    private int sheetSize;
+    private ArrayList<BufferedImage> sheets;
+    private IdentityHashMap<Image, AtlasRegion> regions;
+
+    // packing position in the current sheet
+    private BufferedImage sheet;
+    private int shelfX;
+    private int shelfY;
+    private int shelfHeight;
+
+    /**
+        Creates a new SpriteAtlas with the default sheet size.
+        Sheets are created with the specified ImageLoader.
+    */
+    public SpriteAtlas(ImageLoader imageLoader) {
+        this(imageLoader, DEFAULT_SHEET_SIZE);
+    }
+
+
+    /**
+        Creates a new SpriteAtlas with the specified sheet size.
+    */
+    public SpriteAtlas(ImageLoader imageLoader, int sheetSize) {
+        this.imageLoader = imageLoader;
+        this.sheetSize = sheetSize;
+        sheets = new ArrayList<BufferedImage>();
+        regions = new IdentityHashMap<Image, AtlasRegion>();
+    }
+
+
+    /**
+        Adds an image to this atlas. Returns the image of the
+        new region, which shares its pixels with the sheet, and
+        should be used in place of the original image. If the
+        image is already in this atlas, or is too big for a
+        sheet, it is returned unchanged.
+    */
+    public Image add(Image image) {
+        if (image == null || regions.containsKey(image)) {
+            return image;
+        }
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width <= 0 || height <= 0 ||
+            width > sheetSize || height > sheetSize)
+        {
+            return image;
+        }
+
+        // start a new shelf or sheet if needed
+        if (sheet != null && shelfX + width > sheetSize) {
+            shelfX = 0;
+            shelfY += shelfHeight;
+            shelfHeight = 0;
+        }
+        if (sheet == null || shelfY + height > sheetSize) {
+            sheet = imageLoader.createCompatibleImage(
+                sheetSize, sheetSize, Transparency.TRANSLUCENT);
+            sheets.add(sheet);
+            shelfX = 0;
+            shelfY = 0;
+            shelfHeight = 0;
+        }
+
+        // copy the image into the sheet
+        Graphics2D g = sheet.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, shelfX, shelfY, null);
+        g.dispose();
+
+        AtlasRegion region = new AtlasRegion(sheet, shelfX, shelfY,
+            width, height);
+        regions.put(region.getImage(), region);
+        shelfX += width;
+        shelfHeight = Math.max(shelfHeight, height);
+        return region.getImage();
+    }
+
+
+    /**
+        Adds every image in the array to this atlas, replacing
+        each element with the image of its region.
+    */
+    public void addAll(Image[] images) {
+        for (int i=0; i<images.length; i++) {
+            images[i] = add(images[i]);
+        }
+    }
+
+
+    /**
+        Gets the region for an image returned by add(), or null
+        if the image is not in this atlas.
+    */
+    public AtlasRegion getRegion(Image image) {
+        return regions.get(image);
+    }
+
+
+    /**
+        Gets the number of sheets in this atlas.
+    */
+    public int getNumSheets() {
+        return sheets.size();
+    }
+
+
+    /**
+        Gets the number of images in this atlas.
+    */
+    public int getNumRegions() {
+        return regions.size();
+    }
+}
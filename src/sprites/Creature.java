@@ -314,7 +314,6 @@ public abstract class Creature extends Sprite {
 			}
 			else if (attackTime>ATTACK_LOWER_THRESHOLD){
 				//TODO: animate attack
-				int[] colors = attackColors();
 				if (beginAttack!=0){
 //					attack(beginAttack);
 					beginAttack=0;
@@ -383,10 +382,4 @@ public abstract class Creature extends Sprite {
 		attackTime = 0;//interrupt attacks
 		rollTime = 0;//and rolls
 	}
-	/*
-	 * To be Overwritten by individual classes
-	 */
-	public int[] attackColors(){
-		return null;
-	}
 }
@@ -1,13 +1,28 @@
 package test;
 
 import java.awt.*;
-import javax.swing.ImageIcon;
 
+import graphics.ImageLoader;
 import graphics.ScreenManager;
+import util.TripleBuffer;
 
 /**
     Simple abstract class used for testing. Subclasses should
     implement the draw() method.
+    <p>The game loop can run the game with a fixed timestep (see
+    setTickLength()), so the game behaves the same at any frame
+    rate.
+    <p>In headless mode, the game draws into an offscreen image
+    instead of a full screen window, so it can run without a
+    display. A frame limit can be set to stop the game (and print
+    the frame rate) after a number of frames.
+    <p>In pipelined mode, the game is drawn on a separate render
+    thread. After each update, the update thread captures what
+    to draw into a snapshot, and the render thread draws the most
+    recent snapshot, so a slow screen update doesn't hold up the
+    game and vice versa. Subclasses that support pipelined mode
+    override createSnapshot(), captureSnapshot() and
+    draw(Graphics2D, Object).
 */
 public abstract class GameCore {
 
@@ -25,8 +40,29 @@ public abstract class GameCore {
         new DisplayMode(1024, 768, 24, 0),
     };
 
-    private boolean isRunning;
+    /**
+        The most fixed ticks run in one pass of the game loop
+        before the game is allowed to fall behind.
+    */
+    public static final int MAX_CATCH_UP_TICKS = 5;
+
+    /**
+        The default length of a fixed tick, in milliseconds
+        (125 ticks per second).
+    */
+    public static final int DEFAULT_TICK_LENGTH = 8;
+
+    private volatile boolean isRunning;
+    private boolean pipelined;
+    private int tickLength;
+    private float interpolation = 1;
+    private boolean headless;
+    private int headlessWidth;
+    private int headlessHeight;
+    private int frameLimit;
+    private volatile int numFrames;
     protected ScreenManager screen;
+    protected ImageLoader imageLoader;
 
 
     /**
@@ -37,13 +73,104 @@ public abstract class GameCore {
     }
 
 
+    /**
+        Sets whether the game is drawn on a separate render
+        thread. Must be called before run().
+    */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+
+    /**
+        Checks whether the game is drawn on a separate render
+        thread.
+    */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+
+    /**
+        Sets the length of a fixed simulation tick, in
+        milliseconds. If greater than 0, update() is always
+        called with this elapsed time, as many times as needed to
+        keep up with real time (measured with System.nanoTime()),
+        and the screen is drawn in between ticks using
+        getInterpolation(). If 0 (the default), update() is called
+        once per frame with the actual elapsed time. Must be
+        called before run().
+    */
+    public void setTickLength(int tickLength) {
+        this.tickLength = tickLength;
+    }
+
+
+    /**
+        Gets the length of a fixed simulation tick, in
+        milliseconds, or 0 if the game uses a variable timestep.
+    */
+    public int getTickLength() {
+        return tickLength;
+    }
+
+
+    /**
+        Gets how far the game is between the last tick and the
+        next one, from 0 to 1, for drawing Sprites in between
+        their previous and current positions. Always 1 when the
+        game uses a variable timestep.
+    */
+    public float getInterpolation() {
+        return interpolation;
+    }
+
+
+    /**
+        Sets headless mode, which draws into an offscreen image
+        of the specified size instead of a full screen window.
+        Must be called before run().
+    */
+    public void setHeadless(int width, int height) {
+        headless = true;
+        headlessWidth = width;
+        headlessHeight = height;
+    }
+
+
+    /**
+        Checks whether the game runs without a display.
+    */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+
+    /**
+        Sets the number of frames to draw before the game stops
+        by itself. If 0 (the default), the game runs until stop()
+        is called.
+    */
+    public void setFrameLimit(int frameLimit) {
+        this.frameLimit = frameLimit;
+    }
+
+
     /**
         Calls init() and gameLoop()
     */
     public void run() {
         try {
             init();
+            long startTime = System.currentTimeMillis();
             gameLoop();
+            if (headless) {
+                long time = Math.max(1,
+                    System.currentTimeMillis() - startTime);
+                System.out.println(numFrames + " frames in " +
+                    time + " ms (" + (numFrames * 1000L / time) +
+                    " fps)");
+            }
         }
         finally {
             screen.restoreScreen();
@@ -80,6 +207,13 @@ public abstract class GameCore {
         Sets full screen mode and initiates and objects.
     */
     public void init() {
+        if (headless) {
+            screen = new ScreenManager(headlessWidth, headlessHeight);
+            imageLoader = new ImageLoader(null);
+            isRunning = true;
+            return;
+        }
+
         screen = new ScreenManager();
         DisplayMode displayMode =
             screen.findFirstCompatibleMode(POSSIBLE_MODES);
@@ -90,12 +224,19 @@ public abstract class GameCore {
         window.setBackground(Color.blue);
         window.setForeground(Color.white);
 
+        imageLoader = new ImageLoader(
+            window.getGraphicsConfiguration());
+
         isRunning = true;
     }
 
 
+    /**
+        Loads an image and converts it to a managed image
+        compatible with the display.
+    */
     public Image loadImage(String fileName) {
-        return new ImageIcon(fileName).getImage();
+        return imageLoader.loadImage(fileName);
     }
 
 
@@ -103,22 +244,72 @@ public abstract class GameCore {
         Runs through the game loop until stop() is called.
     */
     public void gameLoop() {
+        TripleBuffer snapshots = null;
+        Thread renderThread = null;
+        if (pipelined) {
+            Object snapshot1 = createSnapshot();
+            if (snapshot1 != null) {
+                snapshots = new TripleBuffer(snapshot1,
+                    createSnapshot(), createSnapshot());
+                // publish a first snapshot before drawing starts
+                captureSnapshot(snapshots.getWriteBuffer());
+                snapshots.publish();
+                renderThread = createRenderThread(snapshots);
+                renderThread.start();
+            }
+        }
+
         long startTime = System.currentTimeMillis();
         long currTime = startTime;
+        long tickNanos = tickLength * 1000000L;
+        long prevNanos = System.nanoTime();
+        long accumulator = 0;
 
         while (isRunning) {
-            long elapsedTime =
-                System.currentTimeMillis() - currTime;
-            currTime += elapsedTime;
+            if (tickLength > 0) {
+                // run as many fixed ticks as the elapsed time
+                // allows, and keep the rest for next time
+                long nanos = System.nanoTime();
+                accumulator += nanos - prevNanos;
+                prevNanos = nanos;
+                int numTicks = 0;
+                while (accumulator >= tickNanos &&
+                    numTicks < MAX_CATCH_UP_TICKS)
+                {
+                    update(tickLength);
+                    accumulator -= tickNanos;
+                    numTicks++;
+                }
+                // too far behind (like after a GC pause), so
+                // let the game slow down instead of catching up
+                if (accumulator >= tickNanos) {
+                    accumulator %= tickNanos;
+                }
+                interpolation = (float)accumulator / tickNanos;
+            }
+            else {
+                long elapsedTime =
+                    System.currentTimeMillis() - currTime;
+                currTime += elapsedTime;
 
-            // update
-            update(elapsedTime);
+                // update
+                update(elapsedTime);
+                interpolation = 1;
+            }
 
-            // draw the screen
-            Graphics2D g = screen.getGraphics();
-            draw(g);
-            g.dispose();
-            screen.update();
+            if (snapshots != null) {
+                // hand the result to the render thread
+                captureSnapshot(snapshots.getWriteBuffer());
+                snapshots.publish();
+            }
+            else {
+                // draw the screen
+                Graphics2D g = screen.getGraphics();
+                draw(g);
+                g.dispose();
+                screen.update();
+                frameDrawn();
+            }
 
             // don't take a nap! run as fast as possible
             //to run program without lag
@@ -127,6 +318,87 @@ public abstract class GameCore {
             }
             catch (InterruptedException ex) { }
         }
+
+        // wait for the last frame to finish
+        if (renderThread != null) {
+            try {
+                renderThread.join();
+            }
+            catch (InterruptedException ex) { }
+        }
+    }
+
+
+    /**
+        Creates the thread that draws snapshots in pipelined
+        mode.
+    */
+    private Thread createRenderThread(final TripleBuffer snapshots) {
+        return new Thread("RenderThread") {
+            public void run() {
+                while (isRunning) {
+                    Object snapshot;
+                    try {
+                        snapshot = snapshots.waitForReadBuffer(100);
+                    }
+                    catch (InterruptedException ex) {
+                        break;
+                    }
+                    // nothing new to draw
+                    if (snapshot == null) {
+                        continue;
+                    }
+
+                    // draw the screen
+                    Graphics2D g = screen.getGraphics();
+                    draw(g, snapshot);
+                    g.dispose();
+                    screen.update();
+                    frameDrawn();
+                }
+            }
+        };
+    }
+
+
+    /**
+        Counts a drawn frame, and stops the game if the frame
+        limit is reached.
+    */
+    private void frameDrawn() {
+        numFrames++;
+        if (frameLimit > 0 && numFrames == frameLimit) {
+            stop();
+        }
+    }
+
+
+    /**
+        Creates an empty snapshot for pipelined mode. Returns
+        null by default, which means pipelined mode isn't
+        supported and the game is drawn on the update thread.
+    */
+    protected Object createSnapshot() {
+        return null;
+    }
+
+
+    /**
+        Captures everything needed to draw the current state of
+        the game into a snapshot created by createSnapshot().
+        Called on the update thread in pipelined mode.
+    */
+    protected void captureSnapshot(Object snapshot) {
+        // do nothing
+    }
+
+
+    /**
+        Draws a snapshot captured by captureSnapshot(). Called
+        on the render thread in pipelined mode.
+    */
+    public void draw(Graphics2D g, Object snapshot) {
+        // do nothing
     }
 
 
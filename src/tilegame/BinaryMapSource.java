@@ -0,0 +1,329 @@
+package tilegame;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+    The BinaryMapSource class reads the regions of a compiled map
+    file (see MapCompiler). The file is memory-mapped, and a
+    region's tiles are copied straight out of the mapping into
+    the region's array, so loading a map only reads the header
+    and loading a region is a bulk copy.
+
+    <p>The file format (big-endian) is:
+    <pre>
+    int      MAGIC
+    int      VERSION
+    int      width, height (in tiles)
+    int      region width (TileMap.REGION_WIDTH)
+    string   back, middle and front background names (short
+             length, then UTF-8 bytes)
+    int      number of tile types
+    char[]   the character of each tile type (type 1, 2, ...)
+    int      number of decor tile types
+    (char, string)[]  the character and image name of each
+             decor tile type (type 1, 2, ...)
+    int      number of decor layers
+    byte[]   the flags of each decor layer (DECOR_IN_FRONT,
+             DECOR_ANIMATED)
+    int      number of spawns
+    int[]    first spawn of each region, plus the total
+    (char, int, int)[]  spawns: type, tile x, tile y
+    short[]  tile types (0 = empty), one region after another,
+             each region row-major: the collision layer, then
+             each decor layer (in decor tile types)
+    </pre>
+
+    <p>Files of version 1 have no decor tiles or layers: no decor
+    tile table, layer count, flags or decor planes.
+*/
+public class BinaryMapSource implements RegionStreamer.Source {
+
+    /**
+        The first four bytes of a compiled map ("CMAP").
+    */
+    public static final int MAGIC = 0x434D4150;
+
+    /**
+        The version of the compiled map format.
+    */
+    public static final int VERSION = 2;
+
+    /**
+        The flag of a decor layer drawn in front of the Sprites.
+    */
+    public static final int DECOR_IN_FRONT = 1;
+
+    /**
+        The flag of a decor layer whose tiles change all the time.
+    */
+    public static final int DECOR_ANIMATED = 2;
+
+    private String filename;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int width;
+    private int height;
+    private String background;
+    private String backgroundMid;
+    private String backgroundFront;
+    private char[] tileTypes;
+    private int[] tileIds;
+    private char[] decorTileTypes;
+    private String[] decorTileImages;
+    private int[] decorTileIds;
+    private byte[] decorFlags;
+    private int[] regionSpawns;
+    private int spawnsOffset;
+    private int tilesOffset;
+
+    /**
+        Opens and maps a compiled map file, and reads its header.
+    */
+    public BinaryMapSource(String filename) throws IOException {
+        this.filename = filename;
+        file = new RandomAccessFile(filename, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                0, file.length());
+            readHeader();
+        }
+        catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            // a truncated file
+            file.close();
+            throw new IOException("Bad map file: " + filename, ex);
+        }
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    public String getBackground() {
+        return background;
+    }
+
+
+    public String getBackgroundMid() {
+        return backgroundMid;
+    }
+
+
+    public String getBackgroundFront() {
+        return backgroundFront;
+    }
+
+
+    public int getNumDecorLayers() {
+        return decorFlags.length;
+    }
+
+
+    public boolean isDecorLayerInFront(int layer) {
+        return (decorFlags[layer] & DECOR_IN_FRONT) != 0;
+    }
+
+
+    public boolean isDecorLayerAnimated(int layer) {
+        return (decorFlags[layer] & DECOR_ANIMATED) != 0;
+    }
+
+
+    public int getNumDecorTiles() {
+        return decorTileTypes.length;
+    }
+
+
+    public char getDecorTileChar(int tile) {
+        return decorTileTypes[tile];
+    }
+
+
+    public String getDecorTileImage(int tile) {
+        return decorTileImages[tile];
+    }
+
+
+    /**
+        Sets the palette id of the tiles written as the specified
+        character. Must be called before any region is loaded.
+    */
+    public void setTileId(char ch, int id) {
+        setId(tileTypes, tileIds, ch, id);
+    }
+
+
+    /**
+        Sets the palette id of the decor tiles written as the
+        specified character. Must be called before any region is
+        loaded.
+    */
+    public void setDecorTileId(char ch, int id) {
+        setId(decorTileTypes, decorTileIds, ch, id);
+    }
+
+
+    private static void setId(char[] types, int[] ids, char ch,
+        int id)
+    {
+        for (int i=0; i<types.length; i++) {
+            if (types[i] == ch) {
+                ids[i + 1] = id;
+            }
+        }
+    }
+
+
+    /**
+        Reads the tiles and spawns of a region. Throws an
+        IOException if a tile type or spawn is out of range (a
+        corrupt or stale file).
+    */
+    public RegionStreamer.Region loadRegion(int index)
+        throws IOException
+    {
+        RegionStreamer.Region region = new RegionStreamer.Region(
+            index, height, decorFlags.length);
+        int planeSize = getNumRegions() * region.tiles.length * 2;
+        readTiles(region.tiles, tileIds, tilesOffset, index);
+        for (int i=0; i<decorFlags.length; i++) {
+            readTiles(region.decorTiles[i], decorTileIds,
+                tilesOffset + (i + 1) * planeSize, index);
+        }
+
+        ByteBuffer spawns = buffer.duplicate();
+        spawns.position(spawnsOffset + regionSpawns[index] * 10);
+        for (int i=regionSpawns[index]; i<regionSpawns[index+1]; i++) {
+            char type = spawns.getChar();
+            int x = spawns.getInt();
+            int y = spawns.getInt();
+            if (x < 0 || x >= width || y < 0 || y >= height) {
+                throw new IOException("Bad map file: " + filename);
+            }
+            region.addSpawn(type, x, y);
+        }
+        return region;
+    }
+
+
+    /**
+        Copies the tiles of a region out of the plane of a layer,
+        and turns the tile types into palette ids.
+    */
+    private void readTiles(short[] tiles, int[] ids, int planeOffset,
+        int index)
+        throws IOException
+    {
+        // each thread gets its own view of the mapping
+        ShortBuffer plane = ((ByteBuffer)buffer.duplicate()
+            .position(planeOffset + index * tiles.length * 2))
+            .asShortBuffer();
+        plane.get(tiles);
+        for (int i=0; i<tiles.length; i++) {
+            int type = tiles[i] & 0xffff;
+            if (type >= ids.length) {
+                throw new IOException("Bad map file: " + filename);
+            }
+            tiles[i] = (short)ids[type];
+        }
+    }
+
+
+    private int getNumRegions() {
+        return (width + TileMap.REGION_WIDTH - 1) /
+            TileMap.REGION_WIDTH;
+    }
+
+
+    /**
+        Closes the map file. The mapping itself is released when
+        it is garbage collected.
+    */
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    private void readHeader() throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a compiled map");
+        }
+        int version = in.getInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unknown map version " + version);
+        }
+        width = in.getInt();
+        height = in.getInt();
+        int regionWidth = in.getInt();
+        if (regionWidth != TileMap.REGION_WIDTH) {
+            throw new IOException("Map was compiled for regions of " +
+                regionWidth + " tiles");
+        }
+        background = readString(in);
+        backgroundMid = readString(in);
+        backgroundFront = readString(in);
+
+        tileTypes = new char[in.getInt()];
+        for (int i=0; i<tileTypes.length; i++) {
+            tileTypes[i] = in.getChar();
+        }
+        tileIds = new int[tileTypes.length + 1];
+
+        decorTileTypes = new char[(version == 1) ? 0 : in.getInt()];
+        decorTileImages = new String[decorTileTypes.length];
+        for (int i=0; i<decorTileTypes.length; i++) {
+            decorTileTypes[i] = in.getChar();
+            decorTileImages[i] = readString(in);
+        }
+        decorTileIds = new int[decorTileTypes.length + 1];
+
+        decorFlags = new byte[(version == 1) ? 0 : in.getInt()];
+        in.get(decorFlags);
+
+        int numSpawns = in.getInt();
+        int numRegions = getNumRegions();
+        regionSpawns = new int[numRegions + 1];
+        for (int i=0; i<regionSpawns.length; i++) {
+            regionSpawns[i] = in.getInt();
+            int first = (i == 0) ? 0 : regionSpawns[i-1];
+            if (regionSpawns[i] < first || regionSpawns[i] > numSpawns) {
+                throw new IOException("Bad spawn table");
+            }
+        }
+        spawnsOffset = in.position();
+        tilesOffset = spawnsOffset + numSpawns * 10;
+        if (buffer.capacity() < tilesOffset + (decorFlags.length + 1) *
+            (long)numRegions * TileMap.REGION_WIDTH * height * 2)
+        {
+            throw new IOException("Map file is truncated");
+        }
+    }
+
+
+    /**
+        Reads a string: its length in bytes (a short), then the
+        bytes in UTF-8.
+    */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,302 @@
+package tilegame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import graphics.Sprite;
+
+/**
+    The CollisionPhase class finds every pair of colliding Sprites
+    in a tick, in parallel. First every Sprite is added, then each
+    Sprite gets its list of candidates from the broad phase (like
+    a SpatialHash). run() tests every Sprite against its
+    candidates and produces the contact list: each colliding pair
+    once, as a pair of Sprite indices in an int array.
+
+    <p>To test each pair only once, the candidates of a Sprite
+    should only be the Sprites added after it.
+
+    <p>The Sprites are split into ranges that are tested on a
+    ForkJoinPool. Testing only reads the Sprites, and each task
+    only writes the results of its own range, so the contact list
+    is in the same order (by first Sprite, then by candidate) no
+    matter how the tasks are scheduled. Applying the contacts is
+    left to the caller, which should do it on one thread in that
+    order.
+
+    <p>Pairs that the CollisionTest can't test off the calling
+    thread (see CollisionTest.isParallelSafe()) are skipped by
+    the tasks and tested on the calling thread after they are
+    done.
+*/
+public class CollisionPhase {
+
+    /**
+        The test that decides if two Sprites collide. It is called
+        from several threads at once, so it must only read the
+        Sprites. isParallelSafe() tells if a pair can be tested on
+        another thread than the one calling run(); if not,
+        isCollision() is called for that pair on the calling
+        thread.
+    */
+    public interface CollisionTest {
+        public boolean isCollision(Sprite s1, Sprite s2);
+        public boolean isParallelSafe(Sprite s1, Sprite s2);
+    }
+
+    // sprites tested per task
+    private static final int SPRITES_PER_TASK = 16;
+
+    private CollisionTest test;
+    private ForkJoinPool pool;
+
+    private Sprite[] sprites = new Sprite[64];
+    private IdentityHashMap<Sprite, Integer> indices =
+        new IdentityHashMap<Sprite, Integer>();
+    private int numSprites;
+
+    // candidates of sprite i are candidates[candidateStart[i]] to
+    // candidates[candidateStart[i+1]] (sprite indices)
+    private int[] candidateStart = new int[65];
+    private int[] candidates = new int[256];
+    private boolean[] hits = new boolean[256];
+    // pairs left for the calling thread
+    private boolean[] deferred = new boolean[256];
+    private int numCandidatesSet;
+    private int numCandidates;
+
+    // pairs of sprite indices
+    private int[] contacts = new int[64];
+    private int numContacts;
+
+    /**
+        Creates a new CollisionPhase that uses the specified test
+        and runs on the common ForkJoinPool.
+    */
+    public CollisionPhase(CollisionTest test) {
+        this(test, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+        Creates a new CollisionPhase that uses the specified test
+        and runs on the specified ForkJoinPool.
+    */
+    public CollisionPhase(CollisionTest test, ForkJoinPool pool) {
+        this.test = test;
+        this.pool = pool;
+    }
+
+
+    /**
+        Removes all Sprites and contacts.
+    */
+    public void clear() {
+        Arrays.fill(sprites, 0, numSprites, null);
+        indices.clear();
+        numSprites = 0;
+        numCandidatesSet = 0;
+        numCandidates = 0;
+        numContacts = 0;
+    }
+
+
+    /**
+        Adds a Sprite, and returns its index. Sprites must all be
+        added before any candidates are set.
+    */
+    public int add(Sprite sprite) {
+        if (numSprites == sprites.length) {
+            int capacity = sprites.length * 2;
+            sprites = Arrays.copyOf(sprites, capacity);
+            candidateStart = Arrays.copyOf(candidateStart, capacity + 1);
+        }
+        indices.put(sprite, numSprites);
+        sprites[numSprites] = sprite;
+        return numSprites++;
+    }
+
+
+    /**
+        Sets the candidates of the next Sprite (in the order they
+        were added) that has no candidates yet. Candidates that
+        weren't added are ignored.
+    */
+    public void setCandidates(List<Sprite> spriteCandidates) {
+        ensureCandidates(spriteCandidates.size());
+        candidateStart[numCandidatesSet] = numCandidates;
+        for (int i=0; i<spriteCandidates.size(); i++) {
+            addCandidate(spriteCandidates.get(i));
+        }
+        numCandidatesSet++;
+        candidateStart[numCandidatesSet] = numCandidates;
+    }
+
+
+    /**
+        Sets the candidates of the next Sprite like
+        setCandidates(List), from the first count Sprites of an
+        array.
+    */
+    public void setCandidates(Sprite[] spriteCandidates, int count) {
+        ensureCandidates(count);
+        candidateStart[numCandidatesSet] = numCandidates;
+        for (int i=0; i<count; i++) {
+            addCandidate(spriteCandidates[i]);
+        }
+        numCandidatesSet++;
+        candidateStart[numCandidatesSet] = numCandidates;
+    }
+
+
+    private void ensureCandidates(int count) {
+        if (numCandidates + count > candidates.length) {
+            int capacity = Math.max(candidates.length * 2,
+                numCandidates + count);
+            candidates = Arrays.copyOf(candidates, capacity);
+            hits = new boolean[capacity];
+            deferred = new boolean[capacity];
+        }
+    }
+
+
+    private void addCandidate(Sprite sprite) {
+        Integer index = indices.get(sprite);
+        if (index != null) {
+            candidates[numCandidates++] = index;
+        }
+    }
+
+
+    /**
+        Tests every Sprite against its candidates, and fills the
+        contact list.
+    */
+    public void run() {
+        // sprites with no candidates set have none
+        while (numCandidatesSet < numSprites) {
+            numCandidatesSet++;
+            candidateStart[numCandidatesSet] = numCandidates;
+        }
+
+        if (numSprites <= SPRITES_PER_TASK) {
+            findHits(0, numSprites, false);
+        }
+        else {
+            pool.invoke(new HitTask(0, numSprites));
+
+            // test the deferred pairs here
+            for (int i=0; i<numSprites; i++) {
+                for (int j=candidateStart[i]; j<candidateStart[i+1]; j++) {
+                    if (deferred[j]) {
+                        hits[j] = test.isCollision(sprites[i],
+                            sprites[candidates[j]]);
+                    }
+                }
+            }
+        }
+
+        // gather the hits in order
+        numContacts = 0;
+        for (int i=0; i<numSprites; i++) {
+            for (int j=candidateStart[i]; j<candidateStart[i+1]; j++) {
+                if (hits[j]) {
+                    if (numContacts * 2 == contacts.length) {
+                        contacts = Arrays.copyOf(contacts,
+                            contacts.length * 2);
+                    }
+                    contacts[numContacts * 2] = i;
+                    contacts[numContacts * 2 + 1] = candidates[j];
+                    numContacts++;
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of Sprites added.
+    */
+    public int getNumSprites() {
+        return numSprites;
+    }
+
+
+    /**
+        Gets the Sprite at the specified index, in the order they
+        were added.
+    */
+    public Sprite getSprite(int index) {
+        return sprites[index];
+    }
+
+
+    /**
+        Gets the number of colliding pairs found by run().
+    */
+    public int getNumContacts() {
+        return numContacts;
+    }
+
+
+    /**
+        Gets the contact list: the colliding pairs found by run(),
+        as Sprite indices. Pair i is contacts[i*2] (the Sprite)
+        and contacts[i*2+1] (its candidate). The array may be
+        longer than getNumContacts() * 2, and is reused by the
+        next run().
+    */
+    public int[] getContacts() {
+        return contacts;
+    }
+
+
+    /**
+        Tests the sprites from start to end-1 against their
+        candidates. If inTask is true, the pairs that aren't safe
+        to test on a pool thread are marked as deferred instead.
+    */
+    private void findHits(int start, int end, boolean inTask) {
+        for (int i=start; i<end; i++) {
+            for (int j=candidateStart[i]; j<candidateStart[i+1]; j++) {
+                Sprite s1 = sprites[i];
+                Sprite s2 = sprites[candidates[j]];
+                deferred[j] = (inTask && !test.isParallelSafe(s1, s2));
+                hits[j] = !deferred[j] && test.isCollision(s1, s2);
+            }
+        }
+    }
+
+
+    /**
+        Tests a range of sprites, splitting the range in half
+        until it is small enough.
+    */
+    private class HitTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int start;
+        private int end;
+
+        public HitTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+
+        protected void compute() {
+            if (end - start <= SPRITES_PER_TASK) {
+                findHits(start, end, true);
+            }
+            else {
+                int middle = (start + end) / 2;
+                invokeAll(new HitTask(start, middle),
+                    new HitTask(middle, end));
+            }
+        }
+    }
+}
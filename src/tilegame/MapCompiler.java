@@ -0,0 +1,174 @@
+package tilegame;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+    The MapCompiler class compiles text maps into the binary map
+    format read by BinaryMapSource. Each map.txt file is compiled
+    to a map.map file next to it. The ResourceManager loads the
+    compiled map instead of the text map when it is up to date.
+    Compiled maps are build output, so they aren't checked in:
+    run the compiler again after changing a map.
+
+    <p>Usage: java tilegame.MapCompiler [-tiles=X] [files...]
+    <br>The tiles option lists the characters that are tiles (by
+    default just 'X'). With no files, every .txt file in the
+    maps/ directory is compiled.
+*/
+public class MapCompiler {
+
+    public static void main(String[] args) throws IOException {
+        String tiles = "X";
+        int numFiles = 0;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].startsWith("-tiles=")) {
+                tiles = args[i].substring(7);
+            }
+            else {
+                compile(args[i], tiles);
+                numFiles++;
+            }
+        }
+        if (numFiles == 0) {
+            File[] files = new File("maps").listFiles();
+            if (files == null) {
+                System.out.println("No maps/ directory");
+                return;
+            }
+            for (int i=0; i<files.length; i++) {
+                if (files[i].getName().endsWith(".txt")) {
+                    compile(files[i].getPath(), tiles);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the name of the compiled map for a text map: the same
+        name, ending in ".map" instead of ".txt".
+    */
+    public static String getCompiledName(String filename) {
+        if (filename.endsWith(".txt")) {
+            filename = filename.substring(0, filename.length() - 4);
+        }
+        return filename + ".map";
+    }
+
+
+    /**
+        Compiles a text map. The characters in tiles are tiles;
+        any other character except a space is a spawn.
+    */
+    public static void compile(String filename, String tiles)
+        throws IOException
+    {
+        TextMapSource source = new TextMapSource(filename);
+        String outName = getCompiledName(filename);
+        try {
+            for (int i=0; i<tiles.length(); i++) {
+                source.setTileId(tiles.charAt(i), i + 1);
+            }
+            int numDecorTiles = source.getNumDecorTiles();
+            for (int i=0; i<numDecorTiles; i++) {
+                source.setDecorTileId(source.getDecorTileChar(i), i + 1);
+            }
+            // regions are read again for each part of the file, so
+            // only one is in memory at a time
+            int numRegions = (source.getWidth() +
+                TileMap.REGION_WIDTH - 1) / TileMap.REGION_WIDTH;
+            int[] regionSpawns = new int[numRegions];
+            int numSpawns = 0;
+            for (int i=0; i<numRegions; i++) {
+                regionSpawns[i] = source.loadRegion(i).numSpawns;
+                numSpawns += regionSpawns[i];
+            }
+
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(outName)));
+            try {
+                out.writeInt(BinaryMapSource.MAGIC);
+                out.writeInt(BinaryMapSource.VERSION);
+                out.writeInt(source.getWidth());
+                out.writeInt(source.getHeight());
+                out.writeInt(TileMap.REGION_WIDTH);
+                writeString(out, source.getBackground());
+                writeString(out, source.getBackgroundMid());
+                writeString(out, source.getBackgroundFront());
+
+                out.writeInt(tiles.length());
+                out.writeChars(tiles);
+
+                out.writeInt(numDecorTiles);
+                for (int i=0; i<numDecorTiles; i++) {
+                    out.writeChar(source.getDecorTileChar(i));
+                    writeString(out, source.getDecorTileImage(i));
+                }
+
+                int numDecorLayers = source.getNumDecorLayers();
+                out.writeInt(numDecorLayers);
+                for (int i=0; i<numDecorLayers; i++) {
+                    int flags = 0;
+                    if (source.isDecorLayerInFront(i)) {
+                        flags |= BinaryMapSource.DECOR_IN_FRONT;
+                    }
+                    if (source.isDecorLayerAnimated(i)) {
+                        flags |= BinaryMapSource.DECOR_ANIMATED;
+                    }
+                    out.writeByte(flags);
+                }
+
+                // spawn table, by region
+                out.writeInt(numSpawns);
+                int firstSpawn = 0;
+                for (int i=0; i<numRegions; i++) {
+                    out.writeInt(firstSpawn);
+                    firstSpawn += regionSpawns[i];
+                }
+                out.writeInt(firstSpawn);
+                for (int i=0; i<numRegions; i++) {
+                    RegionStreamer.Region region = source.loadRegion(i);
+                    for (int j=0; j<region.numSpawns; j++) {
+                        out.writeChar(region.spawnTypes[j]);
+                        out.writeInt(region.spawnX[j]);
+                        out.writeInt(region.spawnY[j]);
+                    }
+                }
+
+                // tile planes: the collision layer, then the decor
+                // layers
+                for (int layer=-1; layer<numDecorLayers; layer++) {
+                    for (int i=0; i<numRegions; i++) {
+                        RegionStreamer.Region region = source.loadRegion(i);
+                        short[] regionTiles = (layer == -1) ?
+                            region.tiles : region.decorTiles[layer];
+                        for (int j=0; j<regionTiles.length; j++) {
+                            out.writeShort(regionTiles[j]);
+                        }
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            source.close();
+        }
+        System.out.println("Compiled " + filename + " to " + outName);
+    }
+
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,368 @@
+package tilegame;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/**
+    The ParallaxBackground class draws a stack of background
+    layers (back to front) that scroll at different rates.
+
+    <p>Each layer has a scroll factor: a layer is drawn at
+    offsetX * scrollFactor, so 0 never moves and 1 moves with
+    the tiles. If a layer has no scroll factor, it is derived
+    from the width of its image, so that the whole image scrolls
+    by once over the width of the map.
+
+    <p>To save fill-rate, each layer is split into vertical
+    strips, and strips that are fully transparent are never
+    drawn. Adjacent layers that scroll at the same rate are
+    composited once into a single cached image, and the screen
+    isn't cleared when an opaque layer covers it.
+*/
+public class ParallaxBackground {
+
+    /**
+        The width of the strips layers are split into.
+    */
+    public static final int STRIP_WIDTH = 64;
+
+    private ArrayList<Layer> layers;
+
+    // the layers actually drawn, after compositing
+    private ArrayList<Layer> drawLayers;
+    private int viewScreenWidth;
+    private int viewMapWidth;
+    private GraphicsConfiguration viewConfig;
+
+    /**
+        Creates a new ParallaxBackground with no layers.
+    */
+    public ParallaxBackground() {
+        layers = new ArrayList<Layer>();
+    }
+
+
+    /**
+        Adds a layer in front of the other layers. The scroll
+        factor is derived from the width of the image.
+    */
+    public void addLayer(Image image) {
+        addLayer(image, Float.NaN);
+    }
+
+
+    /**
+        Adds a layer in front of the other layers, with the
+        specified scroll factor.
+    */
+    public void addLayer(Image image, float scrollFactor) {
+        if (image != null && image.getWidth(null) > 0) {
+            layers.add(new Layer(image, scrollFactor));
+            drawLayers = null;
+        }
+    }
+
+
+    /**
+        Sets the scroll factor of the layer at the specified
+        index (0 is the back layer). Use Float.NaN to derive the
+        factor from the width of the image.
+    */
+    public void setScrollFactor(int index, float scrollFactor) {
+        layers.get(index).scrollFactor = scrollFactor;
+        drawLayers = null;
+    }
+
+
+    /**
+        Gets the number of layers.
+    */
+    public int getNumLayers() {
+        return layers.size();
+    }
+
+
+    /**
+        Draws the background. The offset is the horizontal
+        scroll position of the map (0 or negative).
+    */
+    public void draw(Graphics2D g, int offsetX, int mapWidth,
+        int screenWidth, int screenHeight)
+    {
+        prepare(mapWidth, screenWidth, g.getDeviceConfiguration());
+
+        // draw black background, if no opaque layer covers
+        // the screen
+        if (!isCovered(offsetX, screenWidth, screenHeight)) {
+            g.setColor(Color.black);
+            g.fillRect(0, 0, screenWidth, screenHeight);
+        }
+
+        for (int i=0; i<drawLayers.size(); i++) {
+            drawLayers.get(i).draw(g, offsetX,
+                screenWidth, screenHeight);
+        }
+    }
+
+
+    /**
+        Gets the layers ready to draw for the specified map and
+        screen width. Composites are created compatible with gc
+        (or as plain BufferedImages if gc is null).
+    */
+    void prepare(int mapWidth, int screenWidth,
+        GraphicsConfiguration gc)
+    {
+        if (drawLayers == null || viewScreenWidth != screenWidth ||
+            viewMapWidth != mapWidth || viewConfig != gc)
+        {
+            viewScreenWidth = screenWidth;
+            viewMapWidth = mapWidth;
+            viewConfig = gc;
+            createDrawLayers();
+        }
+    }
+
+
+    /**
+        Checks if an opaque layer covers the whole screen. Only
+        valid after prepare().
+    */
+    boolean isCovered(int offsetX, int screenWidth,
+        int screenHeight)
+    {
+        for (int i=0; i<drawLayers.size(); i++) {
+            Layer layer = drawLayers.get(i);
+            int x = layer.getX(offsetX);
+            if (layer.opaque && x <= 0 &&
+                x + layer.width >= screenWidth &&
+                layer.height >= screenHeight)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Gets the number of layers to draw (after compositing).
+        Only valid after prepare().
+    */
+    int getNumDrawLayers() {
+        return drawLayers.size();
+    }
+
+
+    /**
+        Gets the image of a layer to draw. Only valid after
+        prepare().
+    */
+    Image getDrawLayerImage(int index) {
+        return drawLayers.get(index).image;
+    }
+
+
+    /**
+        Gets the screen x position of a layer to draw. Only valid
+        after prepare().
+    */
+    int getDrawLayerX(int index, int offsetX) {
+        return drawLayers.get(index).getX(offsetX);
+    }
+
+
+    /**
+        Creates the list of layers to draw, compositing adjacent
+        layers that scroll at the same rate.
+    */
+    private void createDrawLayers() {
+        drawLayers = new ArrayList<Layer>();
+        int i = 0;
+        while (i < layers.size()) {
+            Layer layer = layers.get(i);
+            float factor = layer.getScrollFactor(viewScreenWidth,
+                viewMapWidth);
+            int j = i + 1;
+            while (j < layers.size() &&
+                layers.get(j).getScrollFactor(viewScreenWidth,
+                viewMapWidth) == factor)
+            {
+                j++;
+            }
+            if (j - i == 1) {
+                layer.factor = factor;
+                drawLayers.add(layer);
+            }
+            else {
+                drawLayers.add(createComposite(i, j, factor));
+            }
+            i = j;
+        }
+    }
+
+
+    /**
+        Draws layers start to end-1 (bottom-aligned) into one
+        image.
+    */
+    private Layer createComposite(int start, int end, float factor) {
+        int width = 0;
+        int height = 0;
+        for (int i=start; i<end; i++) {
+            width = Math.max(width, layers.get(i).width);
+            height = Math.max(height, layers.get(i).height);
+        }
+        Image image;
+        if (viewConfig != null) {
+            image = viewConfig.createCompatibleImage(width, height,
+                Transparency.TRANSLUCENT);
+        }
+        else {
+            image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+        Graphics2D g = (Graphics2D)image.getGraphics();
+        for (int i=start; i<end; i++) {
+            Layer layer = layers.get(i);
+            g.drawImage(layer.image, 0, height - layer.height, null);
+        }
+        g.dispose();
+
+        Layer composite = new Layer(image, factor);
+        composite.factor = factor;
+        return composite;
+    }
+
+
+    /**
+        A background image, split into vertical strips.
+    */
+    private static class Layer {
+
+        Image image;
+        int width;
+        int height;
+        float scrollFactor;
+        boolean opaque;
+
+        // the factor used while drawing
+        float factor;
+
+        // runs of strips that aren't fully transparent,
+        // as pixel spans [runStart, runEnd)
+        int[] runStart;
+        int[] runEnd;
+
+        public Layer(Image image, float scrollFactor) {
+            this.image = image;
+            this.scrollFactor = scrollFactor;
+            width = image.getWidth(null);
+            height = image.getHeight(null);
+            findRuns();
+        }
+
+
+        /**
+            Gets the scroll factor of this layer, deriving it
+            from the image width if it isn't set.
+        */
+        public float getScrollFactor(int screenWidth, int mapWidth) {
+            if (!Float.isNaN(scrollFactor)) {
+                return scrollFactor;
+            }
+            else if (mapWidth <= screenWidth) {
+                return 0;
+            }
+            else {
+                return (float)(width - screenWidth) /
+                    (mapWidth - screenWidth);
+            }
+        }
+
+
+        public int getX(int offsetX) {
+            return Math.round(offsetX * factor);
+        }
+
+
+        public void draw(Graphics2D g, int offsetX,
+            int screenWidth, int screenHeight)
+        {
+            int x = getX(offsetX);
+            int y = screenHeight - height;
+            for (int i=0; i<runStart.length; i++) {
+                // only draw the visible part of the run
+                int sx1 = Math.max(runStart[i], -x);
+                int sx2 = Math.min(runEnd[i], screenWidth - x);
+                if (sx1 < sx2) {
+                    g.drawImage(image,
+                        x + sx1, y, x + sx2, y + height,
+                        sx1, 0, sx2, height,
+                        null);
+                }
+            }
+        }
+
+
+        /**
+            Finds the strips of the image that have at least
+            one visible pixel, and whether the image is opaque.
+        */
+        private void findRuns() {
+            int numStrips = (width + STRIP_WIDTH - 1) / STRIP_WIDTH;
+            boolean[] visible = new boolean[numStrips];
+
+            if (image instanceof BufferedImage &&
+                ((BufferedImage)image).getColorModel().hasAlpha())
+            {
+                BufferedImage buffer = (BufferedImage)image;
+                int[] row = new int[width];
+                opaque = true;
+                for (int y=0; y<height; y++) {
+                    buffer.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x=0; x<width; x++) {
+                        int alpha = row[x] >>> 24;
+                        if (alpha != 0) {
+                            visible[x / STRIP_WIDTH] = true;
+                        }
+                        if (alpha != 255) {
+                            opaque = false;
+                        }
+                    }
+                }
+            }
+            else {
+                // can't read the pixels (or no alpha), so
+                // draw every strip
+                opaque = (image instanceof BufferedImage);
+                for (int i=0; i<numStrips; i++) {
+                    visible[i] = true;
+                }
+            }
+
+            // join adjacent visible strips into runs
+            ArrayList<int[]> runs = new ArrayList<int[]>();
+            int i = 0;
+            while (i < numStrips) {
+                if (!visible[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < numStrips && visible[i]) {
+                    i++;
+                }
+                runs.add(new int[] {start * STRIP_WIDTH,
+                    Math.min(i * STRIP_WIDTH, width)});
+            }
+            runStart = new int[runs.size()];
+            runEnd = new int[runs.size()];
+            for (int j=0; j<runs.size(); j++) {
+                runStart[j] = runs.get(j)[0];
+                runEnd[j] = runs.get(j)[1];
+            }
+        }
+    }
+}
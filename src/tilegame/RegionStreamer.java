@@ -0,0 +1,499 @@
+package tilegame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import graphics.Sprite;
+import sprites.Creature;
+import util.ThreadPool;
+
+/**
+    The RegionStreamer class keeps the regions of a TileMap
+    around the player loaded, so a level can be much larger than
+    what fits in memory. The regions within the residency window
+    of the player's region (the window on each side) are read
+    from a Source on a background ThreadPool and put in the map
+    by update(), on the game thread. Regions more than one region
+    outside the window are unloaded.
+
+    <p>A region comes with the sprites spawned in it. The sprites
+    standing in a region that isn't loaded are removed from the
+    map, whether the region was unloaded under them or they
+    walked into it (its tiles are empty, so they would fall
+    through the floor). They are spawned again when their spawn
+    region is loaded again. Sprites that were removed from the
+    map in the meantime (killed or picked up) are not spawned
+    again.
+
+    <p>A map file can also have decor layers besides the
+    collision layer (see Source.getNumDecorLayers()). The
+    streamer adds a TileLayer to the map for each of them, with
+    every region unloaded, and loads and unloads their regions
+    together with the collision layer's. Layers added to the map
+    in code aren't streamed.
+*/
+public class RegionStreamer {
+
+    /**
+        The default residency window: the number of regions kept
+        loaded on each side of the player's region.
+    */
+    public static final int DEFAULT_WINDOW = 2;
+
+    /**
+        A Source reads the regions of a map file. loadRegion() is
+        called from a background thread, one region at a time.
+        The tiles of a file are written as characters (like 'X'),
+        which are given palette ids with setTileId() before any
+        region is loaded. Besides the collision layer, a file can
+        have decor layers, drawn behind or in front of the
+        Sprites; their tiles are in the decorTiles of each
+        Region. Decor layers have their own tiles, each with a
+        character and the name of its image, which are given
+        palette ids with setDecorTileId().
+    */
+    public interface Source {
+        public int getWidth();
+        public int getHeight();
+        public String getBackground();
+        public String getBackgroundMid();
+        public String getBackgroundFront();
+        public int getNumDecorLayers();
+        public boolean isDecorLayerInFront(int layer);
+        public boolean isDecorLayerAnimated(int layer);
+        public int getNumDecorTiles();
+        public char getDecorTileChar(int tile);
+        public String getDecorTileImage(int tile);
+        public void setTileId(char ch, int id);
+        public void setDecorTileId(char ch, int id);
+        public Region loadRegion(int region) throws IOException;
+        public void close() throws IOException;
+    }
+
+    /**
+        A Spawner creates the sprite for a spawn read from a map,
+        at the specified tile. Returns null if the type isn't a
+        sprite.
+    */
+    public interface Spawner {
+        public Sprite spawn(char type, int tileX, int tileY);
+    }
+
+    private TileMap map;
+    private Source source;
+    private Spawner spawner;
+    private TileLayer[] decorLayers;
+    private ThreadPool loader;
+    private int window = DEFAULT_WINDOW;
+    private volatile boolean closed;
+
+    // regions requested from the loader, and the ones it finished
+    // or failed to load (both guarded by loaded)
+    private boolean[] pending;
+    private LinkedList<Region> loaded = new LinkedList<Region>();
+    private LinkedList<Integer> failed = new LinkedList<Integer>();
+
+    // spawns by tile (y * width + x): spawned is set while the
+    // sprite is in the map, used is set once it's gone for good
+    private BitSet spawned = new BitSet();
+    private BitSet used = new BitSet();
+    private IdentityHashMap<Sprite, Integer> spawns =
+        new IdentityHashMap<Sprite, Integer>();
+
+    /**
+        Creates a new RegionStreamer that fills the specified map
+        (with every region unloaded) from a Source, loading on the
+        specified ThreadPool. A layer is added to the map for each
+        decor layer of the Source, in the order of the file.
+    */
+    public RegionStreamer(TileMap map, Source source, Spawner spawner,
+        ThreadPool loader)
+    {
+        this.map = map;
+        this.source = source;
+        this.spawner = spawner;
+        this.loader = loader;
+        pending = new boolean[map.getNumRegions()];
+
+        decorLayers = new TileLayer[source.getNumDecorLayers()];
+        for (int i=0; i<decorLayers.length; i++) {
+            decorLayers[i] = new TileLayer(map,
+                source.isDecorLayerAnimated(i), false);
+            if (source.isDecorLayerInFront(i)) {
+                map.addLayer(decorLayers[i]);
+            }
+            else {
+                map.addLayer(map.getCollisionLayerIndex(),
+                    decorLayers[i]);
+            }
+        }
+    }
+
+
+    /**
+        Gets the TileMap this streamer fills.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Sets the residency window: the number of regions kept
+        loaded on each side of the player's region.
+    */
+    public void setWindow(int window) {
+        this.window = Math.max(0, window);
+    }
+
+
+    public int getWindow() {
+        return window;
+    }
+
+
+    /**
+        Loads every region in the window around the specified x
+        position (in pixels) right away, on this thread. Called
+        before the map is first used.
+    */
+    public void loadAround(float x) throws IOException {
+        int center = getRegion(x);
+        for (int i=center-window; i<=center+window; i++) {
+            if (isRegion(i) && !map.isRegionLoaded(i)) {
+                install(source.loadRegion(i));
+            }
+        }
+    }
+
+
+    /**
+        Updates the loaded regions for the player's x position (in
+        pixels): puts the regions the loader finished in the map,
+        requests the missing regions in the window, and unloads
+        the regions outside it. If the player's own region isn't
+        loaded yet, it is loaded right away. Then the sprites in
+        regions that aren't loaded are removed. Returns true if
+        any sprites were added to or removed from the map.
+    */
+    public boolean update(float x) {
+        if (closed) {
+            return false;
+        }
+        int center = getRegion(x);
+        boolean changed = false;
+
+        // put the finished regions in the map
+        Region region;
+        while ((region = takeLoaded()) != null) {
+            pending[region.index] = false;
+            if (Math.abs(region.index - center) <= window + 1 &&
+                !map.isRegionLoaded(region.index))
+            {
+                changed |= install(region);
+            }
+        }
+
+        // request the regions that failed to load again
+        int index;
+        while ((index = takeFailed()) != -1) {
+            pending[index] = false;
+        }
+
+        // the player can't wait for its own region
+        if (isRegion(center) && !map.isRegionLoaded(center)) {
+            try {
+                changed |= install(source.loadRegion(center));
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        // request the rest of the window
+        for (int i=center-window; i<=center+window; i++) {
+            if (isRegion(i) && !map.isRegionLoaded(i) && !pending[i]) {
+                pending[i] = true;
+                loader.runTask(new LoadTask(i));
+            }
+        }
+
+        // unload the regions outside the window, leaving a region
+        // of slack so moving back and forth doesn't reload them
+        for (int i=0; i<map.getNumRegions(); i++) {
+            if (Math.abs(i - center) > window + 1 &&
+                map.isRegionLoaded(i))
+            {
+                evict(i);
+            }
+        }
+
+        changed |= removeStrays();
+        return changed;
+    }
+
+
+    /**
+        Stops loading and closes the Source. Regions already
+        loaded stay in the map.
+    */
+    public void close() {
+        closed = true;
+        synchronized (loaded) {
+            loaded.clear();
+            failed.clear();
+        }
+        try {
+            source.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+        Puts a region in the map and spawns its sprites, except
+        the ones already in the map or used up. Returns true if
+        any sprites were spawned.
+    */
+    private boolean install(Region region) {
+        map.setRegion(region.index, region.tiles);
+        for (int i=0; i<decorLayers.length; i++) {
+            decorLayers[i].setRegion(region.index,
+                region.decorTiles[i]);
+        }
+        boolean changed = false;
+        for (int i=0; i<region.numSpawns; i++) {
+            int tileX = region.spawnX[i];
+            int tileY = region.spawnY[i];
+            int key = tileY * map.getWidth() + tileX;
+            if (spawned.get(key) || used.get(key)) {
+                continue;
+            }
+            Sprite sprite = spawner.spawn(region.spawnTypes[i],
+                tileX, tileY);
+            if (sprite != null) {
+                map.addSprite(sprite);
+                spawns.put(sprite, key);
+                spawned.set(key);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+
+    /**
+        Unloads a region. The sprites standing in it are removed
+        by removeStrays(). The sprites spawned in it that are
+        already gone from the map are gone for good.
+    */
+    private void evict(int index) {
+        map.setRegion(index, null);
+        for (int j=0; j<decorLayers.length; j++) {
+            decorLayers[j].setRegion(index, null);
+        }
+        Iterator<Sprite> i = spawns.keySet().iterator();
+        while (i.hasNext()) {
+            Sprite sprite = i.next();
+            int key = spawns.get(sprite);
+            if (getSpawnRegion(key) == index &&
+                !map.containsSprite(sprite))
+            {
+                i.remove();
+                spawned.clear(key);
+                used.set(key);
+            }
+        }
+    }
+
+
+    /**
+        Removes the sprites standing in regions that aren't
+        loaded. A sprite spawned from the map is spawned again
+        when its spawn region is loaded again, unless it was
+        dying. Returns true if any sprites were removed.
+    */
+    private boolean removeStrays() {
+        boolean changed = false;
+        Iterator<Sprite> i = map.getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = i.next();
+            int region = getRegion(sprite.getX());
+            if (!isRegion(region) || map.isRegionLoaded(region)) {
+                continue;
+            }
+            i.remove();
+            changed = true;
+            Integer key = spawns.remove(sprite);
+            if (key != null) {
+                spawned.clear(key);
+                // a dying creature stays dead
+                if (sprite instanceof Creature &&
+                    !((Creature)sprite).isAlive())
+                {
+                    used.set(key);
+                }
+            }
+        }
+        return changed;
+    }
+
+
+    private Region takeLoaded() {
+        synchronized (loaded) {
+            return loaded.isEmpty() ? null : loaded.removeFirst();
+        }
+    }
+
+
+    private int takeFailed() {
+        synchronized (loaded) {
+            return failed.isEmpty() ? -1 : failed.removeFirst();
+        }
+    }
+
+
+    private boolean isRegion(int index) {
+        return index >= 0 && index < map.getNumRegions();
+    }
+
+
+    private int getRegion(float x) {
+        return Math.floorDiv(TileMapRenderer.pixelsToTiles(x),
+            TileMap.REGION_WIDTH);
+    }
+
+
+    private int getSpawnRegion(int key) {
+        return (key % map.getWidth()) / TileMap.REGION_WIDTH;
+    }
+
+
+    /**
+        Loads a region on the loader thread.
+    */
+    private class LoadTask implements Runnable {
+
+        private int index;
+
+        public LoadTask(int index) {
+            this.index = index;
+        }
+
+
+        public void run() {
+            if (closed) {
+                return;
+            }
+            try {
+                Region region = source.loadRegion(index);
+                synchronized (loaded) {
+                    if (!closed) {
+                        loaded.add(region);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                fail(ex);
+            }
+            catch (RuntimeException ex) {
+                fail(ex);
+            }
+        }
+
+
+        /**
+            Reports that the region couldn't be loaded, so
+            update() can request it again.
+        */
+        private void fail(Exception ex) {
+            // the source is closed when the map changes
+            if (closed) {
+                return;
+            }
+            ex.printStackTrace();
+            synchronized (loaded) {
+                failed.add(index);
+            }
+        }
+    }
+
+
+    /**
+        The tiles and spawns of one region, read by a Source.
+    */
+    public static class Region {
+
+        int index;
+        short[] tiles;
+        short[][] decorTiles;
+        int numSpawns;
+        char[] spawnTypes = new char[8];
+        int[] spawnX = new int[8];
+        int[] spawnY = new int[8];
+
+        /**
+            Creates a new Region with every tile empty, for a map
+            of the specified height.
+        */
+        public Region(int index, int height) {
+            this(index, height, 0);
+        }
+
+
+        /**
+            Creates a new Region with every tile empty, for a map
+            of the specified height with the specified number of
+            decor layers.
+        */
+        public Region(int index, int height, int numDecorLayers) {
+            this.index = index;
+            tiles = new short[TileMap.REGION_WIDTH * height];
+            decorTiles = new short[numDecorLayers][];
+            for (int i=0; i<numDecorLayers; i++) {
+                decorTiles[i] = new short[TileMap.REGION_WIDTH * height];
+            }
+        }
+
+
+        /**
+            Sets the palette id of a tile, in coordinates relative
+            to the region.
+        */
+        public void setTileId(int x, int y, int id) {
+            tiles[y * TileMap.REGION_WIDTH + x] = (short)id;
+        }
+
+
+        /**
+            Sets the palette id of a tile of a decor layer, in
+            coordinates relative to the region.
+        */
+        public void setDecorTileId(int layer, int x, int y, int id) {
+            decorTiles[layer][y * TileMap.REGION_WIDTH + x] = (short)id;
+        }
+
+
+        /**
+            Adds a spawn at the specified tile (in map coordinates).
+        */
+        public void addSpawn(char type, int tileX, int tileY) {
+            if (numSpawns == spawnTypes.length) {
+                int capacity = numSpawns * 2;
+                spawnTypes = Arrays.copyOf(spawnTypes, capacity);
+                spawnX = Arrays.copyOf(spawnX, capacity);
+                spawnY = Arrays.copyOf(spawnY, capacity);
+            }
+            spawnTypes[numSpawns] = type;
+            spawnX[numSpawns] = tileX;
+            spawnY[numSpawns] = tileY;
+            numSpawns++;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package tilegame;
+
+import java.awt.Image;
+import java.util.Arrays;
+
+import graphics.AtlasRegion;
+import graphics.Sprite;
+
+/**
+    A RenderSnapshot holds everything TileMapRenderer needs to
+    draw one frame: the map, its layers and background, the
+    scroll position, and the image and screen position of each
+    visible Sprite.
+
+    <p>Snapshots are filled on the update thread with
+    TileMapRenderer.capture() and can then be drawn on another
+    thread while the game keeps updating, since drawing never
+    looks at the Sprites themselves. The tiles aren't copied:
+    they are read from the layers, which can be read while the
+    game thread changes them (see TileLayer). Snapshots are
+    reused, so the arrays only grow when more Sprites are
+    visible than before.
+*/
+public class RenderSnapshot {
+
+    TileMap map;
+    TileLayer[] layers = new TileLayer[4];
+    int numLayers;
+    int collisionLayer;
+    ParallaxBackground background;
+    int mapWidth;
+    int offsetX;
+    int offsetY;
+    int screenWidth;
+    int screenHeight;
+
+    int numSprites;
+    Image[] images = new Image[32];
+    AtlasRegion[] regions = new AtlasRegion[32];
+    int[] x = new int[32];
+    int[] y = new int[32];
+
+    private boolean paused;
+
+    /**
+        Gets the map this snapshot was taken of.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Sets whether the game was paused when this snapshot was
+        taken.
+    */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+
+    /**
+        Checks whether the game was paused when this snapshot
+        was taken.
+    */
+    public boolean isPaused() {
+        return paused;
+    }
+
+
+    /**
+        Copies the list of layers of the map, so the layers can
+        be drawn while the map's list changes.
+    */
+    void captureLayers() {
+        Arrays.fill(layers, 0, numLayers, null);
+        numLayers = map.getNumLayers();
+        if (layers.length < numLayers) {
+            layers = new TileLayer[numLayers];
+        }
+        for (int i=0; i<numLayers; i++) {
+            layers[i] = map.getLayer(i);
+        }
+        collisionLayer = map.getCollisionLayerIndex();
+    }
+
+
+    /**
+        Removes all Sprites from this snapshot.
+    */
+    void clearSprites() {
+        Arrays.fill(images, 0, numSprites, null);
+        Arrays.fill(regions, 0, numSprites, null);
+        numSprites = 0;
+    }
+
+
+    /**
+        Adds a Sprite's current image at the specified screen
+        position.
+    */
+    void addSprite(Sprite sprite, int screenX, int screenY) {
+        if (numSprites == images.length) {
+            int capacity = numSprites * 2;
+            images = Arrays.copyOf(images, capacity);
+            regions = Arrays.copyOf(regions, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+        }
+        images[numSprites] = sprite.getImage();
+        regions[numSprites] = sprite.getAtlasRegion();
+        x[numSprites] = screenX;
+        y[numSprites] = screenY;
+        numSprites++;
+    }
+}
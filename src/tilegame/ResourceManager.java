@@ -4,10 +4,16 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.io.*;
 import java.util.ArrayList;
-import javax.swing.ImageIcon;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import graphics.*;
 import sprites.*;
+import util.ThreadPool;
 
 
 /**
@@ -17,9 +23,137 @@ import sprites.*;
 */
 public class ResourceManager {
 
+    /**
+        A ProgressListener is told how many assets a
+        ResourceManager has loaded so far, out of the total,
+        while it is created. It is called on the thread that
+        creates the ResourceManager.
+    */
+    public interface ProgressListener {
+        public void loadProgress(int numLoaded, int numAssets);
+    }
+
+    // the left-facing creature images. the right-facing and dead
+    // images are made from these
+    private static final String[] CREATURE_IMAGES = {
+        "characters/hero_Idle0.png",
+        "characters/hero_Idle1.png",
+        "characters/hero_Idle2.png",
+        "characters/hero_walk0.png",
+        "characters/hero_walk1.png",
+        "characters/hero_walk2.png",
+        "characters/hero_walk3.png",
+        "characters/hero_walk4.png",
+        "characters/hero_dodge0.png",
+        "characters/hero_dodge1.png",
+        "characters/hero_dodge2.png",
+        "characters/hero_dodge3.png",
+        "characters/hero_dodge4.png",
+        "characters/hero_dodge5.png",
+        "characters/hero_0.png",
+        "characters/hero_1.png",
+        "characters/hero_2.png",
+        "characters/hero_3.png",
+        "characters/hero_4.png",
+        "characters/hero_5.png",
+        "characters/hero_6.png",
+        "characters/hero_7.png",
+        "characters/hero_8.png",
+        "characters/hero_9.png",
+        "characters/hero_10.png",
+        "characters/hero_11.png",
+        "characters/hero_12.png",
+        "characters/char1_walk0.png",
+        "characters/char1_walk1.png",
+        "characters/char1_walk2.png",
+        "characters/char1_walk3.png",
+        "characters/char1_0.png",
+        "characters/char1_1.png",
+        "characters/char1_2.png",
+        "characters/char1_3.png",
+        "characters/char1_4.png",
+        "characters/char1_5.png",
+        "characters/char1_6.png",
+        "characters/char1_7.png",
+        "characters/char1_8.png",
+        "characters/char1_9.png",
+        "characters/char1_10.png",
+        "characters/char1_11.png",
+        "characters/char1_12.png",
+        "characters/char2_walk0.png",
+        "characters/char2_walk1.png",
+        "characters/char2_walk2.png",
+        "characters/char2_walk3.png",
+        "characters/char2_walk4.png",
+        "characters/char2_0.png",
+        "characters/char2_1.png",
+        "characters/char2_2.png",
+        "characters/char2_3.png",
+        "characters/char2_4.png",
+        "characters/char2_5.png",
+        "characters/char2_6.png",
+        "characters/char2_7.png",
+        "characters/char2_8.png",
+        "characters/char2_9.png",
+        "characters/char3_walk0.png",
+        "characters/char3_walk1.png",
+        "characters/char3_walk2.png",
+        "characters/char3_walk3.png",
+        "characters/char3_walk4.png",
+        "characters/char3_walk5.png",
+        "characters/char3_walk6.png",
+        "characters/char3_walk7.png",
+        "characters/char3_walk8.png",
+        "characters/char3_0.png",
+        "characters/char3_1.png",
+        "characters/char3_2.png",
+        "characters/char3_3.png",
+        "characters/char3_4.png",
+        "characters/char3_5.png",
+        "characters/char3_6.png",
+        "characters/char3_7.png",
+        "characters/char3_8.png",
+        "characters/char3_9.png",
+        "characters/enemy1_walk1.png",
+        "characters/enemy1_walk2.png",
+        "characters/enemy1_walk3.png",
+        "characters/enemy1_attack1.png",
+        "characters/enemy1_attack2.png",
+        "characters/enemy1_attack3.png",
+        "characters/enemy1_attack4.png",
+        "characters/enemy1_attack5.png",
+        "characters/enemy2_walk1.png",
+        "characters/enemy2_walk2.png",
+        "characters/enemy2_walk3.png",
+        "characters/enemy2_attack1.png",
+        "characters/enemy2_attack2.png",
+    };
+
+    private static final String[] PORTAL_IMAGES = {
+        "background/portal1.png",
+        "background/portal2.png",
+        "background/portal3.png",
+    };
+
     private Image tile;
     private int currentMap;
     private GraphicsConfiguration gc;
+    private ImageLoader imageLoader;
+    private SpriteAtlas atlas;
+    private IdentityHashMap<Image, CollisionMask> collisionMasks;
+
+    // reads map regions in the background
+    private ThreadPool loader;
+    private RegionStreamer streamer;
+
+    // decodes the assets while the ResourceManager is created
+    private ForkJoinPool decoder;
+    private ArrayList<String> decodedNames;
+    private ArrayList<CompletableFuture<Image>> decodedImages;
+    private ProgressListener progressListener;
+    private int numAssets;
+    private int numLoaded;
+    private Object progressLock = new Object();
 
     // host sprites used for cloning
     private Sprite playerSprite;
@@ -40,21 +174,83 @@ public class ResourceManager {
         GraphicsConfiguration.
     */
     public ResourceManager(GraphicsConfiguration gc) {
+        this(gc, null);
+    }
+
+
+    /**
+        Creates a new ResourceManager with the specified
+        GraphicsConfiguration. The images are decoded in parallel
+        on a pool with a thread per processor; the mirrored and
+        dead images of a frame are made as soon as the frame is
+        decoded. The ProgressListener (if not null) is told how
+        many are done.
+    */
+    public ResourceManager(GraphicsConfiguration gc,
+        ProgressListener progressListener)
+    {
         this.gc = gc;
-        loadTileImages();
-        loadCreatureSprites();
-        loadGameBackgroundSprites();
+        this.progressListener = progressListener;
+        imageLoader = new ImageLoader(gc);
+        atlas = new SpriteAtlas(imageLoader);
+        collisionMasks = new IdentityHashMap<Image, CollisionMask>();
+        loader = new ThreadPool(1);
+
+        // start every decode, then put the results together on
+        // this thread, in the same order every time
+        decoder = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors());
+        decodedNames = new ArrayList<String>();
+        decodedImages = new ArrayList<CompletableFuture<Image>>();
+        try {
+            CompletableFuture<Image> tileImage = loadTileImages();
+            CompletableFuture<Image>[][] creatureImages =
+                loadCreatureImages();
+            CompletableFuture<Image>[] portalImages =
+                loadImages(PORTAL_IMAGES);
+            awaitLoading();
+
+            // list the images in the ImageLoader's report in the
+            // order they were started, not the order they finished
+            for (int i=0; i<decodedNames.size(); i++) {
+                imageLoader.addToReport(decodedNames.get(i),
+                    decodedImages.get(i).join());
+            }
+
+            tile = tileImage.join();
+            Image[][] images = new Image[creatureImages.length][];
+            for (int i=0; i<images.length; i++) {
+                images[i] = join(creatureImages[i]);
+            }
+            loadCreatureSprites(images);
+            loadGameBackgroundSprites(join(portalImages));
+        }
+        finally {
+            decoder.shutdown();
+            decoder = null;
+            decodedNames = null;
+            decodedImages = null;
+        }
     }
 
 
     /**
-        Gets an image from the images/ directory.
+        Gets the ImageLoader used to load and convert images.
+    */
+    public ImageLoader getImageLoader() {
+        return imageLoader;
+    }
+
+
+    /**
+        Gets an image from the res/ directory, converted to a
+        compatible (managed) image.
     */
     public Image loadImage(String name) {
         String filename = "res/" + name;
         //ClassLoader cl = this.getClass().getClassLoader();
         //return new ImageIcon(cl.getClass().getResource(filename)).getImage();
-        return new ImageIcon(filename).getImage();
+        return imageLoader.loadImage(filename);
     }
 
 
@@ -72,11 +268,12 @@ public class ResourceManager {
         //    image.getWidth(null) / 2,
         //    image.getHeight(null) / 2);
 
-        // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
+        // create an image with the same transparency as the
+        // original (at least bitmask, for the rotated corners)
+        Image newImage = imageLoader.createCompatibleImage(
             image.getWidth(null),
             image.getHeight(null),
-            Transparency.BITMASK);
+            getTransparency(image));
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -88,6 +285,16 @@ public class ResourceManager {
     }
 
 
+    private int getTransparency(Image image) {
+        int transparency = Transparency.BITMASK;
+        if (image instanceof Transparency) {
+            transparency = Math.max(transparency,
+                ((Transparency)image).getTransparency());
+        }
+        return transparency;
+    }
+
+
     private Image getScaledImage(Image image, float x, float y) {
 
         // set up the transform
@@ -97,11 +304,12 @@ public class ResourceManager {
             (x-1) * image.getWidth(null) / 2,
             (y-1) * image.getHeight(null) / 2);
 
-        // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
+        // create an image with the same transparency as the
+        // original (at least bitmask, for the rotated corners)
+        Image newImage = imageLoader.createCompatibleImage(
             image.getWidth(null),
             image.getHeight(null),
-            Transparency.BITMASK);
+            getTransparency(image));
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -121,6 +329,10 @@ public class ResourceManager {
                     "maps/map" + currentMap + ".txt");                
             }
             catch (IOException ex) {
+                if (!(ex instanceof FileNotFoundException)) {
+                    // a broken map, not the last one
+                    ex.printStackTrace();
+                }
                 if (currentMap == 1) {
                     // no maps to load!
                     return null;
@@ -146,113 +358,147 @@ public class ResourceManager {
     }
 
 
+    /**
+        Loads a map, streaming its regions around the player
+        from the map file. The regions around the player's start
+        are loaded before this method returns. The streamer of
+        the previous map is closed.
+    */
     private TileMap loadMap(String filename)
         throws IOException
     {
-    	String background="background/";
-        String background_mid="background/";
-    	String background_front="background/";
-        ArrayList<String> lines = new ArrayList<String>();
-        int width = 0;
-        int height = 0;
-
-        // read every line in the text file into the list
-        BufferedReader reader = new BufferedReader(
-            new FileReader(filename));
-        while (true) {
-            String line = reader.readLine();
-            // no more lines to read
-            if (line == null) {
-                reader.close();
-                break;
-            }
-
-            // add every line except for comments
-            if (!line.startsWith("#")) {
-            	//front background image
-            	if(line.startsWith("+")){
-            		background_front += line.substring(1);
-            	}
-            	//mid background image
-            	else if(line.startsWith("-")){
-            		background_mid += line.substring(1);
-            	}
-            	//back background image
-            	else if(line.startsWith("/")){
-            		background += line.substring(1);
-            	}
-            	else{
-            		lines.add(line);
-            		width = Math.max(width, line.length());
-            	}
+        RegionStreamer.Source source = openMap(filename);
+        TileMap newMap = new TileMap(source.getWidth(),
+            source.getHeight(), false);
+        source.setTileId('X', newMap.getPaletteId(tile));
+        for (int i=0; i<source.getNumDecorTiles(); i++) {
+            String name = source.getDecorTileImage(i);
+            Image image = loadImage("background/" + name);
+            if (image.getWidth(null) <= 0) {
+                source.close();
+                throw new IOException("No decor tile image " + name);
             }
+            source.setDecorTileId(source.getDecorTileChar(i),
+                newMap.getPaletteId(image));
         }
 
-        // parse the lines to create a TileEngine
-        height = lines.size();
-        TileMap newMap = new TileMap(width, height);
-        for (int y=0; y<height; y++) {
-            String line = (String)lines.get(y);
-            for (int x=0; x<line.length(); x++) {
-                char ch = line.charAt(x);
-
-                                
-                if (ch == 'X') {
-                    newMap.setTile(x, y, tile);
-                }
-                else if (ch == '@') {
-                    addSprite(newMap, portalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, greenKnightSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, greyKnightSprite, x, y);
-                }
-                else if (ch == '3') {
-                	addSprite(newMap, femaleKnightSprite, x, y);
-                }
-                else if (ch == '4') {
-                	addSprite(newMap, staffKnightSprite, x, y);
-                }
-                else if (ch == '5') {
-                	addSprite(newMap, bossKnightSprite, x, y);
-                }
-            }
+        if (streamer != null) {
+            streamer.close();
         }
+        streamer = new RegionStreamer(newMap, source,
+            new RegionStreamer.Spawner() {
+                public Sprite spawn(char type, int tileX, int tileY) {
+                    return createSprite(type, tileX, tileY);
+                }
+            },
+            loader);
 
         // add the player to the map
         Sprite player = (Sprite)playerSprite.clone();
         player.setX(TileMapRenderer.tilesToPixels(3));
         player.setY(0);
         newMap.setPlayer(player);
-        newMap.setBackgrounds(loadImage(background), loadImage(background_mid), loadImage(background_front));
+        streamer.loadAround(player.getX());
+        newMap.setBackgrounds(
+            loadImage("background/" + source.getBackground()),
+            loadImage("background/" + source.getBackgroundMid()),
+            loadImage("background/" + source.getBackgroundFront()));
         return newMap;
     }
 
 
-    //required for goal sprite only
-    private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
+    /**
+        Opens a map file. If the map was compiled with MapCompiler
+        and the compiled map is at least as new as the text map,
+        the compiled map is read instead.
+    */
+    private RegionStreamer.Source openMap(String filename)
+        throws IOException
     {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
-
-            // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
-                (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
-
-            // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
-
-            // add it to the map
-            map.addSprite(sprite);
+        File textFile = new File(filename);
+        File compiledFile = new File(MapCompiler.getCompiledName(filename));
+        if (compiledFile.exists() && (!textFile.exists() ||
+            compiledFile.lastModified() >= textFile.lastModified()))
+        {
+            try {
+                return new BinaryMapSource(compiledFile.getPath());
+            }
+            catch (IOException ex) {
+                // fall back to the text map
+                if (!textFile.exists()) {
+                    throw ex;
+                }
+            }
+        }
+        return new TextMapSource(filename);
+    }
+
+
+    /**
+        Gets the RegionStreamer of the last map loaded.
+    */
+    public RegionStreamer getRegionStreamer() {
+        return streamer;
+    }
+
+
+    /**
+        Stops streaming and closes the loader thread.
+    */
+    public void close() {
+        if (streamer != null) {
+            streamer.close();
+        }
+        loader.close();
+    }
+
+
+    /**
+        Creates the sprite for a character of a map file at the
+        specified tile. Returns null if the character isn't a
+        sprite.
+    */
+    private Sprite createSprite(char ch, int tileX, int tileY) {
+        if (ch == '@') {
+            return createSprite(portalSprite, tileX, tileY);
+        }
+        else if (ch == '1') {
+            return createSprite(greenKnightSprite, tileX, tileY);
+        }
+        else if (ch == '2') {
+            return createSprite(greyKnightSprite, tileX, tileY);
+        }
+        else if (ch == '3') {
+            return createSprite(femaleKnightSprite, tileX, tileY);
+        }
+        else if (ch == '4') {
+            return createSprite(staffKnightSprite, tileX, tileY);
+        }
+        else if (ch == '5') {
+            return createSprite(bossKnightSprite, tileX, tileY);
         }
+        return null;
+    }
+
+
+    private Sprite createSprite(Sprite hostSprite, int tileX, int tileY) {
+        if (hostSprite == null) {
+            return null;
+        }
+        // clone the sprite from the "host"
+        Sprite sprite = (Sprite)hostSprite.clone();
+
+        // center the sprite
+        sprite.setX(
+            TileMapRenderer.tilesToPixels(tileX) +
+            (TileMapRenderer.tilesToPixels(1) -
+            sprite.getWidth()) / 2);
+
+        // bottom-justify the sprite
+        sprite.setY(
+            TileMapRenderer.tilesToPixels(tileY + 1) -
+            sprite.getHeight());
+        return sprite;
     }
 
 
@@ -261,15 +507,165 @@ public class ResourceManager {
     // -----------------------------------------------------------
 
 
-    public void loadTileImages() {
+    /**
+        Starts decoding the creature images (the left-facing
+        ones), and making the right-facing, left-facing dead and
+        right-facing dead images of each as soon as the image it
+        is made from is done. Returns the four sets of images, in
+        that order.
+    */
+    private CompletableFuture<Image>[][] loadCreatureImages() {
+        CompletableFuture<Image>[][] images = newFutures(4,
+            CREATURE_IMAGES.length);
+        for (int i=0; i<CREATURE_IMAGES.length; i++) {
+            images[0][i] = decode(CREATURE_IMAGES[i]);
+            images[1][i] = loadMirrorImage(images[0][i]);
+            images[2][i] = loadDeadImage(images[0][i], 1);
+            images[3][i] = loadDeadImage(images[1][i], -1);
+        }
+        return images;
+    }
+
+
+    /**
+        Starts decoding the specified images.
+    */
+    private CompletableFuture<Image>[] loadImages(String[] names) {
+        CompletableFuture<Image>[] images = newFutures(1,
+            names.length)[0];
+        for (int i=0; i<names.length; i++) {
+            images[i] = decode(names[i]);
+        }
+        return images;
+    }
+
+
+    /**
+        Starts decoding an image from the res/ directory.
+    */
+    private CompletableFuture<Image> decode(String name) {
+        final String filename = "res/" + name;
+        CompletableFuture<Image> image = track(
+            CompletableFuture.supplyAsync(new Supplier<Image>() {
+                public Image get() {
+                    return imageLoader.decodeImage(filename);
+                }
+            }, decoder));
+        decodedNames.add(filename);
+        decodedImages.add(image);
+        return image;
+    }
+
+
+    /**
+        Starts making the mirror image of an image, once it is
+        done.
+    */
+    private CompletableFuture<Image> loadMirrorImage(
+        CompletableFuture<Image> source)
+    {
+        return track(source.thenApplyAsync(
+            new Function<Image, Image>() {
+                public Image apply(Image image) {
+                    return getMirrorImage(image);
+                }
+            }, decoder));
+    }
+
+
+    /**
+        Starts making the "dead" image of an image, once it is
+        done.
+    */
+    private CompletableFuture<Image> loadDeadImage(
+        CompletableFuture<Image> source, final int x)
+    {
+        return track(source.thenApplyAsync(
+            new Function<Image, Image>() {
+                public Image apply(Image image) {
+                    return getDeadImage(image, x);
+                }
+            }, decoder));
+    }
+
+
+    /**
+        Counts an asset, and counts it as loaded when it's done
+        (or failed).
+    */
+    private CompletableFuture<Image> track(
+        CompletableFuture<Image> asset)
+    {
+        numAssets++;
+        return asset.whenComplete(new BiConsumer<Image, Throwable>() {
+            public void accept(Image image, Throwable ex) {
+                synchronized (progressLock) {
+                    numLoaded++;
+                    progressLock.notifyAll();
+                }
+            }
+        });
+    }
+
+
+    /**
+        Waits until every asset is done, telling the
+        ProgressListener each time more are done.
+    */
+    private void awaitLoading() {
+        if (progressListener == null) {
+            return;
+        }
+        int reported = -1;
+        while (reported < numAssets) {
+            int loaded;
+            synchronized (progressLock) {
+                try {
+                    while (numLoaded == reported) {
+                        progressLock.wait();
+                    }
+                }
+                catch (InterruptedException ex) {
+                    // stop reporting, the joins still wait
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                loaded = numLoaded;
+            }
+            progressListener.loadProgress(loaded, numAssets);
+            reported = loaded;
+        }
+    }
+
+
+    private static Image[] join(CompletableFuture<Image>[] futures) {
+        Image[] images = new Image[futures.length];
+        for (int i=0; i<futures.length; i++) {
+            images[i] = futures[i].join();
+        }
+        return images;
+    }
+
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static CompletableFuture<Image>[][] newFutures(int rows,
+        int columns)
+    {
+        return new CompletableFuture[rows][columns];
+    }
+
+
+    /**
+        Starts decoding the tile images.
+    */
+    private CompletableFuture<Image> loadTileImages() {
         // keep looking for tile A,B,C, etc. this makes it
         // easy to drop new tiles in the images/ directory
         
     	
         
         String name = "background/floor.png";
-        File file = new File("res/" + name);
-        tile = loadImage(name);
+        return decode(name);
         
     
         
@@ -288,115 +684,16 @@ public class ResourceManager {
     }
 
 
-    public void loadCreatureSprites() {
-
-        Image[][] images = new Image[4][];
-
-        // load left-facing images
-        images[0] = new Image[] {
-        	loadImage("characters/hero_Idle0.png"),
-        	loadImage("characters/hero_Idle1.png"),
-        	loadImage("characters/hero_Idle2.png"),
-            loadImage("characters/hero_walk0.png"),
-            loadImage("characters/hero_walk1.png"),
-            loadImage("characters/hero_walk2.png"),
-            loadImage("characters/hero_walk3.png"),
-            loadImage("characters/hero_walk4.png"),
-            loadImage("characters/hero_dodge0.png"),
-            loadImage("characters/hero_dodge1.png"),
-            loadImage("characters/hero_dodge2.png"),
-            loadImage("characters/hero_dodge3.png"),
-            loadImage("characters/hero_dodge4.png"),
-            loadImage("characters/hero_dodge5.png"),
-            loadImage("characters/hero_0.png"),
-            loadImage("characters/hero_1.png"),
-            loadImage("characters/hero_2.png"),
-            loadImage("characters/hero_3.png"),
-            loadImage("characters/hero_4.png"),
-            loadImage("characters/hero_5.png"),
-            loadImage("characters/hero_6.png"),
-            loadImage("characters/hero_7.png"),
-            loadImage("characters/hero_8.png"),
-            loadImage("characters/hero_9.png"),
-            loadImage("characters/hero_10.png"),
-            loadImage("characters/hero_11.png"),
-            loadImage("characters/hero_12.png"),
-            loadImage("characters/char1_walk0.png"),
-            loadImage("characters/char1_walk1.png"),
-            loadImage("characters/char1_walk2.png"),
-            loadImage("characters/char1_walk3.png"),
-            loadImage("characters/char1_0.png"),
-            loadImage("characters/char1_1.png"),
-            loadImage("characters/char1_2.png"),
-            loadImage("characters/char1_3.png"),
-            loadImage("characters/char1_4.png"),
-            loadImage("characters/char1_5.png"),
-            loadImage("characters/char1_6.png"),
-            loadImage("characters/char1_7.png"),
-            loadImage("characters/char1_8.png"),
-            loadImage("characters/char1_9.png"),
-            loadImage("characters/char1_10.png"),
-            loadImage("characters/char1_11.png"),
-            loadImage("characters/char1_12.png"),
-            loadImage("characters/char2_walk0.png"),
-            loadImage("characters/char2_walk1.png"),
-            loadImage("characters/char2_walk2.png"),
-            loadImage("characters/char2_walk3.png"),
-            loadImage("characters/char2_walk4.png"),
-            loadImage("characters/char2_0.png"),
-            loadImage("characters/char2_1.png"),
-            loadImage("characters/char2_2.png"),
-            loadImage("characters/char2_3.png"),
-            loadImage("characters/char2_4.png"),
-            loadImage("characters/char2_5.png"),
-            loadImage("characters/char2_6.png"),
-            loadImage("characters/char2_7.png"),
-            loadImage("characters/char2_8.png"),
-            loadImage("characters/char2_9.png"),
-            loadImage("characters/char3_walk0.png"),
-            loadImage("characters/char3_walk1.png"),
-            loadImage("characters/char3_walk2.png"),
-            loadImage("characters/char3_walk3.png"),
-            loadImage("characters/char3_walk4.png"),
-            loadImage("characters/char3_walk5.png"),
-            loadImage("characters/char3_walk6.png"),
-            loadImage("characters/char3_walk7.png"),
-            loadImage("characters/char3_walk8.png"),
-            loadImage("characters/char3_0.png"),
-            loadImage("characters/char3_1.png"),
-            loadImage("characters/char3_2.png"),
-            loadImage("characters/char3_3.png"),
-            loadImage("characters/char3_4.png"),
-            loadImage("characters/char3_5.png"),
-            loadImage("characters/char3_6.png"),
-            loadImage("characters/char3_7.png"),
-            loadImage("characters/char3_8.png"),
-            loadImage("characters/char3_9.png"),
-            loadImage("characters/enemy1_walk1.png"),
-            loadImage("characters/enemy1_walk2.png"),
-            loadImage("characters/enemy1_walk3.png"),
-            loadImage("characters/enemy1_attack1.png"),
-            loadImage("characters/enemy1_attack2.png"),
-            loadImage("characters/enemy1_attack3.png"),
-            loadImage("characters/enemy1_attack4.png"),
-            loadImage("characters/enemy1_attack5.png"),
-            loadImage("characters/enemy2_walk1.png"),
-            loadImage("characters/enemy2_walk2.png"),
-            loadImage("characters/enemy2_walk3.png"),
-            loadImage("characters/enemy2_attack1.png"),
-            loadImage("characters/enemy2_attack2.png"),
-        };
+    /**
+        Creates the creature sprites from the images returned by
+        loadCreatureImages().
+    */
+    private void loadCreatureSprites(Image[][] images) {
 
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
-        for (int i=0; i<images[0].length; i++) {
-            // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
-            // left-facing "dead" images
-            images[2][i] = getDeadImage(images[0][i], 1);
-            // right-facing "dead" images
-            images[3][i] = getDeadImage(images[1][i], -1);
+        // pack every frame into the atlas, so the standalone
+        // images can be thrown away
+        for (int i=0; i<images.length; i++) {
+            atlas.addAll(images[i]);
         }
 
         // create creature animations
@@ -446,6 +743,31 @@ public class ResourceManager {
         bossKnightSprite = new Boss(bossKnightWalkAnim[0], bossKnightWalkAnim[1], bossKnightWalkAnim[2], bossKnightWalkAnim[3], bossKnightAttackAnim[0], bossKnightAttackAnim[1]);
         greyKnightSprite = new GreyKnight(greyKnightWalkAnim[0], greyKnightWalkAnim[1], greyKnightWalkAnim[2], greyKnightWalkAnim[3], greyKnightAttackAnim[0], greyKnightAttackAnim[1]);
         greenKnightSprite = new GreenKnight(greenKnightWalkAnim[0], greenKnightWalkAnim[1], greenKnightWalkAnim[2], greenKnightWalkAnim[3], greenKnightAttackAnim[0], greenKnightAttackAnim[1]);
+
+        // draw the animations from the atlas, and make the
+        // collision masks and hit boxes of every frame (including
+        // the mirrored and dead images)
+        Animation[][] anims = {
+            playerIdleAnim, playerWalkAnim, playerRollAnim,
+            playerAttackAnim, greyKnightWalkAnim, greyKnightAttackAnim,
+            greenKnightWalkAnim, greenKnightAttackAnim,
+            staffKnightWalkAnim, staffKnightAttackAnim,
+            femaleKnightWalkAnim, femaleKnightAttackAnim,
+            bossKnightWalkAnim, bossKnightAttackAnim
+        };
+        for (int i=0; i<anims.length; i++) {
+            boolean attack = (anims[i] == playerAttackAnim ||
+                anims[i] == greyKnightAttackAnim ||
+                anims[i] == greenKnightAttackAnim ||
+                anims[i] == staffKnightAttackAnim ||
+                anims[i] == femaleKnightAttackAnim ||
+                anims[i] == bossKnightAttackAnim);
+            for (int j=0; j<anims[i].length; j++) {
+                anims[i][j].setAtlas(atlas);
+                anims[i][j].createCollisionMasks(collisionMasks);
+                anims[i][j].createHitBoxes(attack);
+            }
+        }
         
         
     }
@@ -648,13 +970,18 @@ public class ResourceManager {
 	}
 
     //required for goal sprite only
-    private void loadGameBackgroundSprites() {
+    private void loadGameBackgroundSprites(Image[] portalImages) {
         // create "goal" sprite
+        Image portal1 = atlas.add(portalImages[0]);
+        Image portal2 = atlas.add(portalImages[1]);
+        Image portal3 = atlas.add(portalImages[2]);
         Animation anim = new Animation();
-        anim.addFrame(loadImage("background/portal1.png"), 150);
-        anim.addFrame(loadImage("background/portal2.png"), 150);
-        anim.addFrame(loadImage("background/portal1.png"), 150);
-        anim.addFrame(loadImage("background/portal3.png"), 150);
+        anim.addFrame(portal1, 150);
+        anim.addFrame(portal2, 150);
+        anim.addFrame(portal1, 150);
+        anim.addFrame(portal3, 150);
+        anim.setAtlas(atlas);
+        anim.createCollisionMasks(collisionMasks);
         portalSprite = new BackgroundSprites.Goal(anim);
     }
 
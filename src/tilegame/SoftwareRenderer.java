@@ -0,0 +1,304 @@
+package tilegame;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import graphics.SpanImage;
+
+/**
+    The SoftwareRenderer class draws a RenderSnapshot without
+    Java2D: everything is copied straight into an int[]
+    framebuffer, which is then drawn to the screen with one
+    drawImage() call. This gives predictable frame times where
+    Java2D falls back to slow generic loops (no GPU, or headless).
+
+    <p>Images are converted to SpanImages the first time they
+    are drawn, so drawing only copies runs of opaque pixels.
+    Translucent pixels are treated as a bitmask. Every layer of
+    the map is drawn this way; empty tiles cost nothing, so a
+    layer only costs what it covers.
+
+    <p>The screen is split into horizontal bands, which are drawn
+    in parallel on a ForkJoinPool. Each band draws everything
+    clipped to its rows, so bands never write the same pixels.
+*/
+public class SoftwareRenderer {
+
+    // bands per thread, so threads that finish early can help
+    private static final int BANDS_PER_THREAD = 2;
+
+    private ForkJoinPool pool;
+    private BufferedImage frameImage;
+    private int[] frame;
+    private WeakHashMap<Image, SpanImage> spanImages;
+
+    // what is drawn in the current frame
+    private RenderSnapshot snapshot;
+    private ParallaxBackground background;
+    private SpanImage[] layers = new SpanImage[0];
+    private int[] layerX = new int[0];
+    private boolean covered;
+    private int firstTileX;
+    private int numTilesX;
+    // visible tiles of every layer: tile (x, y) of layer i is
+    // tiles[(i * mapHeight + y) * numTilesX + x]
+    private SpanImage[] tiles = new SpanImage[0];
+    // SpanImages of the map's tile palette, by palette id
+    private TileMap paletteMap;
+    private SpanImage[] paletteSpans = new SpanImage[0];
+    private SpanImage[] sprites = new SpanImage[0];
+
+    /**
+        Creates a new SoftwareRenderer that draws on the common
+        ForkJoinPool.
+    */
+    public SoftwareRenderer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+
+    /**
+        Creates a new SoftwareRenderer that draws on the
+        specified ForkJoinPool.
+    */
+    public SoftwareRenderer(ForkJoinPool pool) {
+        this.pool = pool;
+        spanImages = new WeakHashMap<Image, SpanImage>();
+    }
+
+
+    /**
+        Draws a RenderSnapshot.
+    */
+    public void draw(Graphics2D g, RenderSnapshot snapshot) {
+        int width = snapshot.screenWidth;
+        int height = snapshot.screenHeight;
+        if (frameImage == null || frameImage.getWidth() != width ||
+            frameImage.getHeight() != height)
+        {
+            frameImage = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+            frame = ((DataBufferInt)frameImage.getRaster().
+                getDataBuffer()).getData();
+        }
+
+        prepare(snapshot);
+
+        // draw the bands
+        int numBands = Math.max(1,
+            Math.min(height, pool.getParallelism() * BANDS_PER_THREAD));
+        pool.invoke(new BandTask(0, numBands, numBands, height));
+
+        this.snapshot = null;
+        g.drawImage(frameImage, 0, 0, null);
+    }
+
+
+    /**
+        Gets the SpanImages of everything in the snapshot, so
+        the bands only read shared data. The tiles are read from
+        the layers of the map (see TileLayer for reading them on
+        another thread than the game's).
+    */
+    private void prepare(RenderSnapshot snapshot) {
+        this.snapshot = snapshot;
+
+        // background layers
+        background = snapshot.background;
+        covered = false;
+        if (background != null) {
+            background.prepare(snapshot.mapWidth,
+                snapshot.screenWidth, null);
+            int numLayers = background.getNumDrawLayers();
+            if (layers.length < numLayers) {
+                layers = new SpanImage[numLayers];
+                layerX = new int[numLayers];
+            }
+            for (int i=0; i<numLayers; i++) {
+                layers[i] = getSpanImage(
+                    background.getDrawLayerImage(i));
+                layerX[i] = background.getDrawLayerX(i,
+                    snapshot.offsetX);
+            }
+            covered = background.isCovered(snapshot.offsetX,
+                snapshot.screenWidth, snapshot.screenHeight);
+        }
+
+        // visible columns of tiles
+        TileMap map = snapshot.map;
+        firstTileX = TileMapRenderer.pixelsToTiles(-snapshot.offsetX);
+        numTilesX = TileMapRenderer.pixelsToTiles(
+            snapshot.screenWidth - snapshot.offsetX - 1) -
+            firstTileX + 1;
+        int layerTiles = numTilesX * map.getHeight();
+        if (tiles.length < layerTiles * snapshot.numLayers) {
+            tiles = new SpanImage[layerTiles * snapshot.numLayers];
+        }
+        if (paletteMap != map) {
+            paletteMap = map;
+            Arrays.fill(paletteSpans, null);
+        }
+        for (int i=0; i<snapshot.numLayers; i++) {
+            TileLayer layer = snapshot.layers[i];
+            for (int y=0; y<map.getHeight(); y++) {
+                for (int x=0; x<numTilesX; x++) {
+                    int id = layer.getTileId(firstTileX + x, y);
+                    tiles[i * layerTiles + y * numTilesX + x] =
+                        getTileSpan(map, id);
+                }
+            }
+        }
+
+        // sprites
+        if (sprites.length < snapshot.numSprites) {
+            sprites = new SpanImage[snapshot.images.length];
+        }
+        for (int i=0; i<snapshot.numSprites; i++) {
+            sprites[i] = getSpanImage(snapshot.images[i]);
+        }
+    }
+
+
+    private SpanImage getSpanImage(Image image) {
+        SpanImage spanImage = spanImages.get(image);
+        if (spanImage == null) {
+            spanImage = new SpanImage(image);
+            spanImages.put(image, spanImage);
+        }
+        return spanImage;
+    }
+
+
+    /**
+        Gets the SpanImage of a tile by palette id, or null for
+        id 0. An id that isn't in the palette yet (the palette
+        grows on the game thread) is drawn empty for now.
+    */
+    private SpanImage getTileSpan(TileMap map, int id) {
+        if (id >= paletteSpans.length) {
+            paletteSpans = Arrays.copyOf(paletteSpans,
+                Math.max(id + 1, map.getPaletteSize()));
+        }
+        if (id != 0 && paletteSpans[id] == null) {
+            Image image = map.getPaletteImage(id);
+            if (image != null) {
+                paletteSpans[id] = getSpanImage(image);
+            }
+        }
+        return paletteSpans[id];
+    }
+
+
+    /**
+        Draws the rows from top (inclusive) to bottom (exclusive).
+    */
+    private void drawBand(int top, int bottom) {
+        RenderSnapshot snapshot = this.snapshot;
+        int width = snapshot.screenWidth;
+        int height = snapshot.screenHeight;
+
+        // background
+        if (!covered) {
+            Arrays.fill(frame, top * width, bottom * width, 0);
+        }
+        if (background != null) {
+            for (int i=0; i<background.getNumDrawLayers(); i++) {
+                layers[i].draw(frame, width, layerX[i],
+                    height - layers[i].getHeight(), top, bottom);
+            }
+        }
+
+        // layers behind the sprites
+        for (int i=0; i<=snapshot.collisionLayer; i++) {
+            drawTiles(i, top, bottom);
+        }
+
+        // sprites that reach into the band
+        for (int i=0; i<snapshot.numSprites; i++) {
+            int y = snapshot.y[i];
+            if (y < bottom && y + sprites[i].getHeight() > top) {
+                sprites[i].draw(frame, width, snapshot.x[i], y,
+                    top, bottom);
+            }
+        }
+
+        // layers in front of the sprites
+        for (int i=snapshot.collisionLayer+1; i<snapshot.numLayers; i++) {
+            drawTiles(i, top, bottom);
+        }
+    }
+
+
+    /**
+        Draws the tiles of a layer that are in the rows from top
+        (inclusive) to bottom (exclusive).
+    */
+    private void drawTiles(int layer, int top, int bottom) {
+        RenderSnapshot snapshot = this.snapshot;
+        int width = snapshot.screenWidth;
+        int offsetX = snapshot.offsetX;
+        int offsetY = snapshot.offsetY;
+        int mapHeight = snapshot.map.getHeight();
+        int firstTileY = Math.max(0,
+            TileMapRenderer.pixelsToTiles(top - offsetY));
+        int lastTileY = Math.min(mapHeight - 1,
+            TileMapRenderer.pixelsToTiles(bottom - 1 - offsetY));
+        for (int y=firstTileY; y<=lastTileY; y++) {
+            int row = (layer * mapHeight + y) * numTilesX;
+            for (int x=0; x<numTilesX; x++) {
+                SpanImage tile = tiles[row + x];
+                if (tile != null) {
+                    tile.draw(frame, width,
+                        TileMapRenderer.tilesToPixels(firstTileX + x) +
+                            offsetX,
+                        TileMapRenderer.tilesToPixels(y) + offsetY,
+                        top, bottom);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Draws a range of bands, splitting the range in half
+        until there is one band left.
+    */
+    private class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int firstBand;
+        private int lastBand;
+        private int numBands;
+        private int height;
+
+        public BandTask(int firstBand, int lastBand, int numBands,
+            int height)
+        {
+            this.firstBand = firstBand;
+            this.lastBand = lastBand;
+            this.numBands = numBands;
+            this.height = height;
+        }
+
+
+        protected void compute() {
+            if (lastBand - firstBand == 1) {
+                drawBand(firstBand * height / numBands,
+                    lastBand * height / numBands);
+            }
+            else {
+                int middle = (firstBand + lastBand) / 2;
+                invokeAll(
+                    new BandTask(firstBand, middle, numBands, height),
+                    new BandTask(middle, lastBand, numBands, height));
+            }
+        }
+    }
+}
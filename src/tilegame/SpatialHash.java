@@ -0,0 +1,370 @@
+package tilegame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import graphics.Sprite;
+
+/**
+    The SpatialHash class buckets Sprites into a uniform grid of
+    square cells, so the Sprites in an area can be found without
+    looking at every Sprite. It is kept up to date as Sprites
+    move instead of being rebuilt: each Sprite in the hash gets a
+    MoveListener, so a Sprite is moved to another cell as soon as
+    setX(), setY() or update() takes it across a cell boundary.
+    Every TileMap keeps one for its Sprites (see
+    TileMap.getSpriteIndex()).
+
+    <p>Each Sprite is put in the cell that contains its top-left
+    corner. query() returns the Sprites whose bounds intersect an
+    area. queryAfter() returns the Sprites in the cells that could
+    hold a Sprite overlapping another (using the size of the
+    largest Sprite seen), so they are candidates that still need
+    an exact test. Sprites are returned in the order they were
+    added.
+
+    <p>The query methods that fill an array don't allocate: they
+    store up to the length of the array and return how many
+    Sprites were found, so a caller whose array was too small can
+    grow it and query again.
+*/
+public class SpatialHash {
+
+    private int cellSize;
+    private int numCellsX;
+    private int numCellsY;
+
+    // first entry in each cell, or null
+    private Entry[] cells;
+    private IdentityHashMap<Sprite, Entry> entries;
+    private int nextSequence;
+    private int maxWidth;
+    private int maxHeight;
+
+    // entries found by the last query, and their sort keys
+    // (sequence << 32 | index in found)
+    private Entry[] found = new Entry[64];
+    private long[] foundKeys = new long[64];
+    private int numFound;
+
+    /**
+        Creates a new SpatialHash covering an area of the
+        specified size (in pixels). Sprites outside the area are
+        put in the nearest cell.
+    */
+    public SpatialHash(int width, int height, int cellSize) {
+        this.cellSize = cellSize;
+        numCellsX = Math.max(1, (width + cellSize - 1) / cellSize);
+        numCellsY = Math.max(1, (height + cellSize - 1) / cellSize);
+        cells = new Entry[numCellsX * numCellsY];
+        entries = new IdentityHashMap<Sprite, Entry>();
+    }
+
+
+    /**
+        Removes all Sprites from this hash.
+    */
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            stopListening(entry);
+        }
+        for (int i=0; i<cells.length; i++) {
+            cells[i] = null;
+        }
+        entries.clear();
+        nextSequence = 0;
+        maxWidth = 0;
+        maxHeight = 0;
+    }
+
+
+    /**
+        Gets the number of Sprites in this hash.
+    */
+    public int getNumSprites() {
+        return entries.size();
+    }
+
+
+    /**
+        Checks if a Sprite is in this hash.
+    */
+    public boolean contains(Sprite sprite) {
+        return entries.containsKey(sprite);
+    }
+
+
+    /**
+        Adds a Sprite to this hash, at its current position, and
+        sets its MoveListener. Does nothing if the Sprite was
+        already added.
+    */
+    public void add(Sprite sprite) {
+        if (entries.containsKey(sprite)) {
+            return;
+        }
+        Entry entry = new Entry(sprite, nextSequence++);
+        entries.put(sprite, entry);
+        link(entry, getCell(sprite));
+        growMaxSize(sprite);
+        sprite.setMoveListener(entry);
+    }
+
+
+    /**
+        Removes a Sprite from this hash.
+    */
+    public void remove(Sprite sprite) {
+        Entry entry = entries.remove(sprite);
+        if (entry != null) {
+            unlink(entry);
+            stopListening(entry);
+        }
+    }
+
+
+    /**
+        Moves a Sprite to the cell of its current position, if it
+        changed. Moves are tracked by the Sprite's MoveListener,
+        so this only needs to be called after a Sprite changes
+        size. Does nothing if the Sprite isn't in this hash.
+    */
+    public void update(Sprite sprite) {
+        Entry entry = entries.get(sprite);
+        if (entry != null) {
+            entry.spriteMoved(sprite);
+        }
+    }
+
+
+    /**
+        Adds to the result list every Sprite whose bounds
+        intersect the specified rectangle, in the order the
+        Sprites were added.
+    */
+    public void query(int x, int y, int width, int height,
+        List<Sprite> result)
+    {
+        find(x, y, width, height, -1, true);
+        for (int i=0; i<numFound; i++) {
+            result.add(found[(int)foundKeys[i]].sprite);
+        }
+        clearFound();
+    }
+
+
+    /**
+        Stores in the result array every Sprite whose bounds
+        intersect the specified rectangle, in the order the
+        Sprites were added. Returns the number of Sprites found,
+        which can be more than the length of the array.
+    */
+    public int query(int x, int y, int width, int height,
+        Sprite[] result)
+    {
+        find(x, y, width, height, -1, true);
+        return storeFound(result);
+    }
+
+
+    /**
+        Adds to the result list every Sprite that might intersect
+        the specified Sprite and was added after it, in the order
+        the Sprites were added. If the Sprite isn't in this hash,
+        every Sprite that might intersect it is added. Calling
+        this for every Sprite finds each nearby pair once.
+    */
+    public void queryAfter(Sprite sprite, List<Sprite> result) {
+        findAfter(sprite);
+        for (int i=0; i<numFound; i++) {
+            result.add(found[(int)foundKeys[i]].sprite);
+        }
+        clearFound();
+    }
+
+
+    /**
+        Stores in the result array every Sprite that might
+        intersect the specified Sprite and was added after it,
+        like queryAfter(Sprite, List). Returns the number of
+        Sprites found, which can be more than the length of the
+        array.
+    */
+    public int queryAfter(Sprite sprite, Sprite[] result) {
+        findAfter(sprite);
+        return storeFound(result);
+    }
+
+
+    private void findAfter(Sprite sprite) {
+        Entry entry = entries.get(sprite);
+        find(Math.round(sprite.getX()), Math.round(sprite.getY()),
+            sprite.getWidth(), sprite.getHeight(),
+            (entry == null) ? -1 : entry.sequence, false);
+    }
+
+
+    /**
+        Finds the Sprites that might intersect the rectangle and
+        were added after the specified sequence number, and sorts
+        them in the order they were added. If exact is true, only
+        the Sprites whose bounds intersect the rectangle are
+        kept.
+    */
+    private void find(int x, int y, int width, int height,
+        int afterSequence, boolean exact)
+    {
+        // a sprite in an earlier cell can reach into the area
+        int firstCellX = getCellX(x - maxWidth + 1);
+        int lastCellX = getCellX(x + width - 1);
+        int firstCellY = getCellY(y - maxHeight + 1);
+        int lastCellY = getCellY(y + height - 1);
+
+        numFound = 0;
+        for (int cellY=firstCellY; cellY<=lastCellY; cellY++) {
+            for (int cellX=firstCellX; cellX<=lastCellX; cellX++) {
+                Entry entry = cells[cellY * numCellsX + cellX];
+                while (entry != null) {
+                    if (entry.sequence > afterSequence &&
+                        (!exact || intersects(entry.sprite,
+                            x, y, width, height)))
+                    {
+                        addFound(entry);
+                    }
+                    entry = entry.next;
+                }
+            }
+        }
+
+        // restore the order the sprites were added in
+        Arrays.sort(foundKeys, 0, numFound);
+    }
+
+
+    private void addFound(Entry entry) {
+        if (numFound == found.length) {
+            found = Arrays.copyOf(found, numFound * 2);
+            foundKeys = Arrays.copyOf(foundKeys, numFound * 2);
+        }
+        found[numFound] = entry;
+        foundKeys[numFound] = ((long)entry.sequence << 32) | numFound;
+        numFound++;
+    }
+
+
+    private int storeFound(Sprite[] result) {
+        int count = Math.min(numFound, result.length);
+        for (int i=0; i<count; i++) {
+            result[i] = found[(int)foundKeys[i]].sprite;
+        }
+        int total = numFound;
+        clearFound();
+        return total;
+    }
+
+
+    private void clearFound() {
+        Arrays.fill(found, 0, numFound, null);
+        numFound = 0;
+    }
+
+
+    private static boolean intersects(Sprite sprite,
+        int x, int y, int width, int height)
+    {
+        int spriteX = Math.round(sprite.getX());
+        int spriteY = Math.round(sprite.getY());
+        return (spriteX < x + width &&
+            x < spriteX + sprite.getWidth() &&
+            spriteY < y + height &&
+            y < spriteY + sprite.getHeight());
+    }
+
+
+    private void link(Entry entry, int cell) {
+        entry.cell = cell;
+        entry.prev = null;
+        entry.next = cells[cell];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        cells[cell] = entry;
+    }
+
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        }
+        else {
+            cells[entry.cell] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+
+    private void stopListening(Entry entry) {
+        if (entry.sprite.getMoveListener() == entry) {
+            entry.sprite.setMoveListener(null);
+        }
+    }
+
+
+    private void growMaxSize(Sprite sprite) {
+        maxWidth = Math.max(maxWidth, sprite.getWidth());
+        maxHeight = Math.max(maxHeight, sprite.getHeight());
+    }
+
+
+    private int getCell(Sprite sprite) {
+        return getCellY(Math.round(sprite.getY())) * numCellsX +
+            getCellX(Math.round(sprite.getX()));
+    }
+
+
+    private int getCellX(int x) {
+        return Math.max(0, Math.min(numCellsX - 1,
+            Math.floorDiv(x, cellSize)));
+    }
+
+
+    private int getCellY(int y) {
+        return Math.max(0, Math.min(numCellsY - 1,
+            Math.floorDiv(y, cellSize)));
+    }
+
+
+    /**
+        A Sprite in the hash, linked with the other Sprites in
+        the same cell. It listens to its Sprite, and moves it to
+        its new cell when it crosses a cell boundary.
+    */
+    private class Entry implements Sprite.MoveListener {
+
+        Sprite sprite;
+        int sequence;
+        int cell;
+        Entry prev;
+        Entry next;
+
+        public Entry(Sprite sprite, int sequence) {
+            this.sprite = sprite;
+            this.sequence = sequence;
+        }
+
+
+        public void spriteMoved(Sprite sprite) {
+            int newCell = getCell(sprite);
+            if (newCell != cell) {
+                unlink(this);
+                link(this, newCell);
+            }
+            growMaxSize(sprite);
+        }
+    }
+}
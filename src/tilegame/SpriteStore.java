@@ -0,0 +1,270 @@
+package tilegame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import graphics.Sprite;
+import sprites.Creature;
+
+/**
+    The SpriteStore class keeps the Sprites of a TileMap in one
+    dense array, with the Creatures first and every other Sprite
+    after them. Removing a Sprite moves the last Sprite of its
+    part into the hole, so adding and removing are O(1) and
+    looping over the Sprites just reads the array.
+
+    <p>Each Sprite gets a handle when it is added: an int that
+    stays valid while the Sprite is in the store, no matter how
+    it moves in the array. The handle of a removed Sprite doesn't
+    find the Sprite that reuses its slot, since every slot counts
+    how many times it was reused (its generation, which wraps
+    after 2048), and the generation is part of the handle.
+*/
+public class SpriteStore {
+
+    // a handle is generation << SLOT_BITS | slot
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    // generations wrap around before reaching the sign bit
+    private static final int GENERATION_MASK = -1 >>> (SLOT_BITS + 1);
+
+    /**
+        A handle that no Sprite ever has.
+    */
+    public static final int NO_HANDLE = -1;
+
+    // creatures are sprites[0] to sprites[numCreatures-1], the
+    // others are sprites[numCreatures] to sprites[numSprites-1]
+    private Sprite[] sprites = new Sprite[16];
+    private int[] slotOfIndex = new int[16];
+    private int numSprites;
+    private int numCreatures;
+
+    // slot table: where the sprite of each slot is, and its
+    // generation. free slots are linked through slotIndex
+    private int[] slotIndex = new int[16];
+    private int[] slotGeneration = new int[16];
+    private int numSlots;
+    private int firstFreeSlot = -1;
+
+    private IdentityHashMap<Sprite, Integer> handles =
+        new IdentityHashMap<Sprite, Integer>();
+
+    /**
+        Adds a Sprite and returns its handle. If the Sprite is
+        already in the store, its handle is returned.
+    */
+    public int add(Sprite sprite) {
+        Integer handle = handles.get(sprite);
+        if (handle != null) {
+            return handle;
+        }
+        if (numSprites == sprites.length) {
+            sprites = Arrays.copyOf(sprites, numSprites * 2);
+            slotOfIndex = Arrays.copyOf(slotOfIndex, numSprites * 2);
+        }
+
+        int slot = allocateSlot();
+        int index = numSprites++;
+        if (sprite instanceof Creature) {
+            // make room at the end of the creatures
+            move(numCreatures, index);
+            index = numCreatures++;
+        }
+        sprites[index] = sprite;
+        slotOfIndex[index] = slot;
+        slotIndex[slot] = index;
+
+        int newHandle = (slotGeneration[slot] << SLOT_BITS) | slot;
+        handles.put(sprite, newHandle);
+        return newHandle;
+    }
+
+
+    /**
+        Removes a Sprite. Returns false if it wasn't in the store.
+    */
+    public boolean remove(Sprite sprite) {
+        Integer handle = handles.get(sprite);
+        if (handle == null) {
+            return false;
+        }
+        removeAt(slotIndex[handle & SLOT_MASK]);
+        return true;
+    }
+
+
+    /**
+        Removes the Sprite with the specified handle. Returns
+        false if the handle is no longer valid.
+    */
+    public boolean remove(int handle) {
+        Sprite sprite = get(handle);
+        return (sprite != null) && remove(sprite);
+    }
+
+
+    /**
+        Gets the Sprite with the specified handle, or null if the
+        Sprite was removed.
+    */
+    public Sprite get(int handle) {
+        int slot = handle & SLOT_MASK;
+        if (handle < 0 || slot >= numSlots ||
+            slotGeneration[slot] != (handle >>> SLOT_BITS))
+        {
+            return null;
+        }
+        return sprites[slotIndex[slot]];
+    }
+
+
+    /**
+        Gets the handle of a Sprite, or NO_HANDLE if it isn't in
+        the store.
+    */
+    public int getHandle(Sprite sprite) {
+        Integer handle = handles.get(sprite);
+        return (handle == null) ? NO_HANDLE : handle;
+    }
+
+
+    /**
+        Checks if a Sprite is in the store.
+    */
+    public boolean contains(Sprite sprite) {
+        return handles.containsKey(sprite);
+    }
+
+
+    /**
+        Gets the number of Sprites.
+    */
+    public int size() {
+        return numSprites;
+    }
+
+
+    /**
+        Gets the number of Creatures. They are the Sprites from
+        index 0 to getNumCreatures() - 1.
+    */
+    public int getNumCreatures() {
+        return numCreatures;
+    }
+
+
+    /**
+        Gets the Sprite at the specified index (from 0 to
+        size() - 1). Indices change when Sprites are removed.
+    */
+    public Sprite getAt(int index) {
+        return sprites[index];
+    }
+
+
+    /**
+        Gets the Creature at the specified index (from 0 to
+        getNumCreatures() - 1).
+    */
+    public Creature getCreature(int index) {
+        return (Creature)sprites[index];
+    }
+
+
+    /**
+        Gets an Iterator over every Sprite, Creatures first. Its
+        remove() method removes the Sprite from the store. The
+        store must not be changed in any other way while
+        iterating.
+    */
+    public Iterator<Sprite> iterator() {
+        return new Iterator<Sprite>() {
+
+            private int next;
+            private boolean canRemove;
+
+            public boolean hasNext() {
+                return next < numSprites;
+            }
+
+            public Sprite next() {
+                if (next >= numSprites) {
+                    throw new NoSuchElementException();
+                }
+                canRemove = true;
+                return sprites[next++];
+            }
+
+            public void remove() {
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                canRemove = false;
+                // a Sprite that wasn't visited yet takes its place
+                next--;
+                removeAt(next);
+            }
+        };
+    }
+
+
+    /**
+        Removes the Sprite at the specified index. The Sprites
+        that are moved into the hole all come from later indices,
+        so an iterator can continue from the same index.
+    */
+    private void removeAt(int index) {
+        Sprite sprite = sprites[index];
+        int slot = slotOfIndex[index];
+        handles.remove(sprite);
+
+        if (index < numCreatures) {
+            // fill the hole with the last creature, then the hole
+            // at the end of the creatures with the last sprite
+            numCreatures--;
+            move(numCreatures, index);
+            index = numCreatures;
+        }
+        numSprites--;
+        move(numSprites, index);
+        sprites[numSprites] = null;
+
+        // free the slot, and invalidate its handles
+        slotGeneration[slot] = (slotGeneration[slot] + 1) &
+            GENERATION_MASK;
+        slotIndex[slot] = firstFreeSlot;
+        firstFreeSlot = slot;
+    }
+
+
+    /**
+        Moves the Sprite at index from to index to.
+    */
+    private void move(int from, int to) {
+        if (from != to) {
+            sprites[to] = sprites[from];
+            slotOfIndex[to] = slotOfIndex[from];
+            slotIndex[slotOfIndex[to]] = to;
+        }
+    }
+
+
+    private int allocateSlot() {
+        if (firstFreeSlot != -1) {
+            int slot = firstFreeSlot;
+            firstFreeSlot = slotIndex[slot];
+            return slot;
+        }
+        if (numSlots > SLOT_MASK) {
+            throw new IllegalStateException("Too many sprites");
+        }
+        if (numSlots == slotIndex.length) {
+            slotIndex = Arrays.copyOf(slotIndex, numSlots * 2);
+            slotGeneration = Arrays.copyOf(slotGeneration, numSlots * 2);
+        }
+        return numSlots++;
+    }
+}
@@ -0,0 +1,362 @@
+package tilegame;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+    The TextMapSource class reads the regions of a text map file
+    (one line per row of tiles, one character per tile) without
+    keeping the whole file in memory. When it is created, the
+    file is scanned once to find where each row starts and how
+    long it is. Loading a region then seeks to the region's
+    columns in each row and reads only those.
+
+    <p>Lines that start with '#' are comments. Lines that start
+    with '+', '-' or '/' name the front, middle and back
+    background images. Characters that were given a tile id with
+    setTileId() are tiles, spaces are empty, and any other
+    character is a spawn. The file must be in a single-byte
+    encoding (like ASCII).
+
+    <p>The first rows are the collision layer. A line that starts
+    with '<' or '>' starts a decor layer, drawn behind or in
+    front of the Sprites, and the rows after it are the rows of
+    that layer, from the top of the map. If the line contains
+    "animated", the layer's tiles change all the time (see
+    TileLayer.isAnimated()). Rows and columns of a decor layer
+    past the size of the collision layer are ignored.
+
+    <p>Decor layers have their own tiles, named by lines that
+    start with '=': the character of the tile, a space, and the
+    name of its image (like "=v vine.png"). Every character of a
+    decor layer other than a space must be one of them.
+*/
+public class TextMapSource implements RegionStreamer.Source {
+
+    private RandomAccessFile file;
+    private int width;
+    private int height;
+
+    // rows of every layer, in file order. the rows of layer i
+    // start at layerFirstRow[i]; layer 0 is the collision layer
+    // and the others are the decor layers
+    private long[] rowOffsets = new long[64];
+    private int[] rowLengths = new int[64];
+    private int numRows;
+    private int numLayers = 1;
+    private int[] layerFirstRow = new int[4];
+    private boolean[] layerInFront = new boolean[4];
+    private boolean[] layerAnimated = new boolean[4];
+    private int[] tileIds = new int[128];
+    private StringBuilder decorTileChars = new StringBuilder();
+    private ArrayList<String> decorTileImages = new ArrayList<String>();
+    private int[] decorTileIds = new int[128];
+    // the first line of a decor layer each character is on
+    private int[] decorCharLines = new int[256];
+    private String background = "";
+    private String backgroundMid = "";
+    private String backgroundFront = "";
+
+    /**
+        Opens a text map file and scans its rows.
+    */
+    public TextMapSource(String filename) throws IOException {
+        InputStream in = new BufferedInputStream(
+            new FileInputStream(filename));
+        try {
+            scan(in, filename);
+        }
+        finally {
+            in.close();
+        }
+        file = new RandomAccessFile(filename, "r");
+    }
+
+
+    /**
+        Gets the width of the map (the length of the longest row).
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of the map (the number of rows).
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the name of the back background image from the file,
+        or an empty string.
+    */
+    public String getBackground() {
+        return background;
+    }
+
+
+    /**
+        Gets the name of the middle background image from the
+        file, or an empty string.
+    */
+    public String getBackgroundMid() {
+        return backgroundMid;
+    }
+
+
+    /**
+        Gets the name of the front background image from the file,
+        or an empty string.
+    */
+    public String getBackgroundFront() {
+        return backgroundFront;
+    }
+
+
+    public int getNumDecorLayers() {
+        return numLayers - 1;
+    }
+
+
+    public boolean isDecorLayerInFront(int layer) {
+        return layerInFront[layer + 1];
+    }
+
+
+    public boolean isDecorLayerAnimated(int layer) {
+        return layerAnimated[layer + 1];
+    }
+
+
+    public int getNumDecorTiles() {
+        return decorTileChars.length();
+    }
+
+
+    public char getDecorTileChar(int tile) {
+        return decorTileChars.charAt(tile);
+    }
+
+
+    public String getDecorTileImage(int tile) {
+        return decorTileImages.get(tile);
+    }
+
+
+    /**
+        Sets the palette id of the tiles written as the specified
+        character. Must be called before any region is loaded.
+    */
+    public void setTileId(char ch, int id) {
+        if (ch >= tileIds.length) {
+            tileIds = Arrays.copyOf(tileIds, ch + 1);
+        }
+        tileIds[ch] = id;
+    }
+
+
+    /**
+        Sets the palette id of the decor tiles written as the
+        specified character. Must be called before any region is
+        loaded.
+    */
+    public void setDecorTileId(char ch, int id) {
+        if (ch >= decorTileIds.length) {
+            decorTileIds = Arrays.copyOf(decorTileIds, ch + 1);
+        }
+        decorTileIds[ch] = id;
+    }
+
+
+    /**
+        Reads the tiles and spawns of a region.
+    */
+    public synchronized RegionStreamer.Region loadRegion(int index)
+        throws IOException
+    {
+        RegionStreamer.Region region =
+            new RegionStreamer.Region(index, height, numLayers - 1);
+        int firstX = index * TileMap.REGION_WIDTH;
+        byte[] row = new byte[TileMap.REGION_WIDTH];
+        for (int layer=0; layer<numLayers; layer++) {
+            int firstRow = layerFirstRow[layer];
+            int lastRow = (layer + 1 < numLayers) ?
+                layerFirstRow[layer + 1] : numRows;
+            int layerHeight = Math.min(height, lastRow - firstRow);
+            for (int y=0; y<layerHeight; y++) {
+                int length = Math.min(TileMap.REGION_WIDTH,
+                    Math.min(rowLengths[firstRow + y], width) - firstX);
+                if (length <= 0) {
+                    continue;
+                }
+                file.seek(rowOffsets[firstRow + y] + firstX);
+                file.readFully(row, 0, length);
+                for (int x=0; x<length; x++) {
+                    char ch = (char)(row[x] & 0xff);
+                    if (layer > 0) {
+                        if (ch < decorTileIds.length &&
+                            decorTileIds[ch] != 0)
+                        {
+                            region.setDecorTileId(layer - 1, x, y,
+                                decorTileIds[ch]);
+                        }
+                    }
+                    else if (ch < tileIds.length && tileIds[ch] != 0) {
+                        region.setTileId(x, y, tileIds[ch]);
+                    }
+                    else if (ch != ' ') {
+                        region.addSpawn(ch, firstX + x, y);
+                    }
+                }
+            }
+        }
+        return region;
+    }
+
+
+    /**
+        Closes the map file.
+    */
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+
+    /**
+        Finds the offset and length of every row, and reads the
+        background and decor tile lines. Throws an IOException if
+        a decor layer has a character that isn't a decor tile.
+    */
+    private void scan(InputStream in, String filename)
+        throws IOException
+    {
+        long offset = 0;
+        long lineStart = 0;
+        int lineNumber = 1;
+        int first = -1;
+        int length = 0;
+        StringBuilder text = new StringBuilder();
+        int b;
+        while (true) {
+            b = in.read();
+            if (b == -1 || b == '\n') {
+                if (b == -1 && offset == lineStart) {
+                    // no last line
+                    break;
+                }
+                addLine(first, lineStart, length, text, filename,
+                    lineNumber);
+                if (b == -1) {
+                    break;
+                }
+                offset++;
+                lineStart = offset;
+                lineNumber++;
+                first = -1;
+                length = 0;
+                text.setLength(0);
+                continue;
+            }
+            offset++;
+            if (first == -1) {
+                first = b;
+            }
+            if (b == '\r') {
+                continue;
+            }
+            length++;
+            if (first == '+' || first == '-' || first == '/' ||
+                first == '<' || first == '>' || first == '=')
+            {
+                text.append((char)b);
+            }
+            else if (numLayers > 1 && first != '#' && b != ' ' &&
+                decorCharLines[b] == 0)
+            {
+                // a row of a decor layer. the decor tiles can be
+                // named anywhere in the file, so the characters
+                // are checked at the end
+                decorCharLines[b] = lineNumber;
+            }
+        }
+
+        for (int ch=0; ch<decorCharLines.length; ch++) {
+            if (decorCharLines[ch] != 0 &&
+                decorTileChars.indexOf(String.valueOf((char)ch)) == -1)
+            {
+                throw new IOException(filename + ":" +
+                    decorCharLines[ch] + ": '" + (char)ch +
+                    "' isn't a decor tile");
+            }
+        }
+    }
+
+
+    private void addLine(int first, long offset, int length,
+        StringBuilder text, String filename, int lineNumber)
+        throws IOException
+    {
+        if (first == '#') {
+            // comment
+        }
+        else if (first == '+') {
+            backgroundFront += text.substring(1);
+        }
+        else if (first == '-') {
+            backgroundMid += text.substring(1);
+        }
+        else if (first == '/') {
+            background += text.substring(1);
+        }
+        else if (first == '=') {
+            // name a decor tile
+            if (text.length() < 4 || text.charAt(1) == ' ' ||
+                text.charAt(2) != ' ' ||
+                decorTileChars.indexOf(text.substring(1, 2)) != -1)
+            {
+                throw new IOException(filename + ":" + lineNumber +
+                    ": bad decor tile \"" + text + "\"");
+            }
+            decorTileChars.append(text.charAt(1));
+            decorTileImages.add(text.substring(3).trim());
+        }
+        else if (first == '<' || first == '>') {
+            // start a decor layer
+            if (numLayers == layerFirstRow.length) {
+                layerFirstRow = Arrays.copyOf(layerFirstRow,
+                    numLayers * 2);
+                layerInFront = Arrays.copyOf(layerInFront,
+                    numLayers * 2);
+                layerAnimated = Arrays.copyOf(layerAnimated,
+                    numLayers * 2);
+            }
+            layerFirstRow[numLayers] = numRows;
+            layerInFront[numLayers] = (first == '>');
+            layerAnimated[numLayers] =
+                (text.indexOf("animated") != -1);
+            numLayers++;
+        }
+        else {
+            if (numRows == rowOffsets.length) {
+                rowOffsets = Arrays.copyOf(rowOffsets, numRows * 2);
+                rowLengths = Arrays.copyOf(rowLengths, numRows * 2);
+            }
+            rowOffsets[numRows] = offset;
+            rowLengths[numRows] = length;
+            numRows++;
+            if (numLayers == 1) {
+                // the collision layer sets the size of the map
+                height++;
+                width = Math.max(width, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package tilegame;
+
+import java.awt.*;
+import java.util.BitSet;
+
+/**
+    The TileChunkCache class pre-renders the tiles of a TileLayer
+    into images of N x N tiles (chunks). Instead of drawing every
+    visible tile each frame, only the few chunks that intersect
+    the screen are drawn.
+
+    <p>Chunk images are created lazily the first time they are
+    visible, using the GraphicsConfiguration of the Graphics they
+    are drawn to, so they can be cached in video memory. Chunks
+    that contain no tiles never get an image. A chunk is
+    re-rendered after TileLayer.setTile() changes one of its tiles;
+    if it isn't on screen, its image is released until it is
+    visible again, so the images of streamed-out regions don't
+    pile up.
+
+    <p>Tiles may change on another thread than the one that
+    draws (like the game thread in pipelined mode, where regions
+    are streamed in and out during play). tileChanged() only
+    queues the chunk; the queue is applied at the start of
+    draw(), so the chunk images and flags are only touched by
+    the drawing thread.
+*/
+public class TileChunkCache implements TileMap.TileListener {
+
+    /**
+        The default width and height of a chunk, in tiles.
+    */
+    public static final int DEFAULT_CHUNK_TILES = 8;
+
+    private TileLayer layer;
+    private int chunkTiles;
+    private int chunkSize;
+    private int numChunksX;
+    private int numChunksY;
+
+    private Image[][] chunks;
+    private boolean[][] dirty;
+    private boolean[][] empty;
+
+    // chunks changed since the last draw (chunkX * numChunksY +
+    // chunkY), swapped with changes at the start of a draw
+    private BitSet pendingChanges = new BitSet();
+    private BitSet changes = new BitSet();
+
+    // chunks drawn last time
+    private int firstDrawnX;
+    private int lastDrawnX = -1;
+    private int firstDrawnY;
+    private int lastDrawnY = -1;
+
+    /**
+        Creates a new TileChunkCache for the collision layer of
+        the specified TileMap using the default chunk size.
+    */
+    public TileChunkCache(TileMap map) {
+        this(map.getCollisionLayer(), DEFAULT_CHUNK_TILES);
+    }
+
+
+    /**
+        Creates a new TileChunkCache for the specified TileLayer
+        using the default chunk size.
+    */
+    public TileChunkCache(TileLayer layer) {
+        this(layer, DEFAULT_CHUNK_TILES);
+    }
+
+
+    /**
+        Creates a new TileChunkCache for the specified TileLayer.
+        Each chunk is chunkTiles x chunkTiles tiles. The cache
+        registers itself as a TileListener of the layer.
+    */
+    public TileChunkCache(TileLayer layer, int chunkTiles) {
+        this.layer = layer;
+        this.chunkTiles = chunkTiles;
+        TileMap map = layer.getMap();
+        chunkSize = TileMapRenderer.tilesToPixels(chunkTiles);
+        numChunksX = (map.getWidth() + chunkTiles - 1) / chunkTiles;
+        numChunksY = (map.getHeight() + chunkTiles - 1) / chunkTiles;
+        chunks = new Image[numChunksX][numChunksY];
+        dirty = new boolean[numChunksX][numChunksY];
+        empty = new boolean[numChunksX][numChunksY];
+        for (int x=0; x<numChunksX; x++) {
+            for (int y=0; y<numChunksY; y++) {
+                dirty[x][y] = true;
+            }
+        }
+        layer.addTileListener(this);
+    }
+
+
+    /**
+        Gets the TileMap of the layer this cache was created for.
+    */
+    public TileMap getMap() {
+        return layer.getMap();
+    }
+
+
+    /**
+        Gets the TileLayer this cache was created for.
+    */
+    public TileLayer getLayer() {
+        return layer;
+    }
+
+
+    /**
+        Marks the chunk containing the specified tile as needing
+        to be re-rendered, the next time the cache is drawn. Can
+        be called from any thread.
+    */
+    public synchronized void tileChanged(int x, int y) {
+        int chunkX = x / chunkTiles;
+        int chunkY = y / chunkTiles;
+        if (chunkX >= 0 && chunkX < numChunksX &&
+            chunkY >= 0 && chunkY < numChunksY)
+        {
+            pendingChanges.set(chunkX * numChunksY + chunkY);
+        }
+    }
+
+
+    /**
+        Marks every chunk as needing to be re-rendered, the next
+        time the cache is drawn. Can be called from any thread.
+    */
+    public synchronized void invalidateAll() {
+        pendingChanges.set(0, numChunksX * numChunksY);
+    }
+
+
+    /**
+        Releases all chunk images. They are re-created the next
+        time they are visible. Called on the drawing thread.
+    */
+    public void flush() {
+        synchronized (this) {
+            pendingChanges.clear();
+        }
+        for (int x=0; x<numChunksX; x++) {
+            for (int y=0; y<numChunksY; y++) {
+                if (chunks[x][y] != null) {
+                    chunks[x][y].flush();
+                    chunks[x][y] = null;
+                }
+                dirty[x][y] = true;
+            }
+        }
+    }
+
+
+    /**
+        Draws the chunks that intersect the screen. The offsets
+        are the pixel position of the top-left corner of the map
+        on the screen.
+    */
+    public void draw(Graphics2D g, int offsetX, int offsetY,
+        int screenWidth, int screenHeight)
+    {
+        int firstChunkX = Math.max(0, -offsetX / chunkSize);
+        int lastChunkX = Math.min(numChunksX - 1,
+            (screenWidth - 1 - offsetX) / chunkSize);
+        int firstChunkY = Math.max(0, -offsetY / chunkSize);
+        int lastChunkY = Math.min(numChunksY - 1,
+            (screenHeight - 1 - offsetY) / chunkSize);
+        firstDrawnX = firstChunkX;
+        lastDrawnX = lastChunkX;
+        firstDrawnY = firstChunkY;
+        lastDrawnY = lastChunkY;
+        applyChanges();
+
+        for (int y=firstChunkY; y<=lastChunkY; y++) {
+            for (int x=firstChunkX; x<=lastChunkX; x++) {
+                if (dirty[x][y]) {
+                    renderChunk(g.getDeviceConfiguration(), x, y);
+                }
+                if (!empty[x][y]) {
+                    g.drawImage(chunks[x][y],
+                        x * chunkSize + offsetX,
+                        y * chunkSize + offsetY,
+                        null);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Marks the chunks changed since the last draw as dirty.
+        The images of the ones that aren't on screen are released
+        until they are visible again.
+    */
+    private void applyChanges() {
+        synchronized (this) {
+            BitSet swap = changes;
+            changes = pendingChanges;
+            pendingChanges = swap;
+        }
+        for (int i=changes.nextSetBit(0); i>=0;
+            i=changes.nextSetBit(i+1))
+        {
+            int chunkX = i / numChunksY;
+            int chunkY = i % numChunksY;
+            dirty[chunkX][chunkY] = true;
+            boolean visible = (chunkX >= firstDrawnX &&
+                chunkX <= lastDrawnX && chunkY >= firstDrawnY &&
+                chunkY <= lastDrawnY);
+            if (!visible && chunks[chunkX][chunkY] != null) {
+                chunks[chunkX][chunkY].flush();
+                chunks[chunkX][chunkY] = null;
+            }
+        }
+        changes.clear();
+    }
+
+
+    /**
+        Renders the tiles of the specified chunk into its image,
+        creating the image if needed.
+    */
+    private void renderChunk(GraphicsConfiguration gc,
+        int chunkX, int chunkY)
+    {
+        int firstTileX = chunkX * chunkTiles;
+        int firstTileY = chunkY * chunkTiles;
+
+        // don't waste an image on a chunk with no tiles
+        boolean hasTiles = false;
+        for (int y=0; y<chunkTiles && !hasTiles; y++) {
+            for (int x=0; x<chunkTiles && !hasTiles; x++) {
+                hasTiles = (layer.getTile(firstTileX + x,
+                    firstTileY + y) != null);
+            }
+        }
+        dirty[chunkX][chunkY] = false;
+        empty[chunkX][chunkY] = !hasTiles;
+        if (!hasTiles) {
+            if (chunks[chunkX][chunkY] != null) {
+                chunks[chunkX][chunkY].flush();
+                chunks[chunkX][chunkY] = null;
+            }
+            return;
+        }
+
+        Image chunk = chunks[chunkX][chunkY];
+        if (chunk == null) {
+            chunk = gc.createCompatibleImage(chunkSize, chunkSize,
+                Transparency.TRANSLUCENT);
+            chunks[chunkX][chunkY] = chunk;
+        }
+
+        Graphics2D g = (Graphics2D)chunk.getGraphics();
+        // clear old contents
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, chunkSize, chunkSize);
+        g.setComposite(AlphaComposite.SrcOver);
+        for (int y=0; y<chunkTiles; y++) {
+            for (int x=0; x<chunkTiles; x++) {
+                Image image = layer.getTile(firstTileX + x,
+                    firstTileY + y);
+                if (image != null) {
+                    g.drawImage(image,
+                        TileMapRenderer.tilesToPixels(x),
+                        TileMapRenderer.tilesToPixels(y),
+                        null);
+                }
+            }
+        }
+        g.dispose();
+    }
+}
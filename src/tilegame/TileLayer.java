@@ -0,0 +1,241 @@
+package tilegame;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+    The TileLayer class is one plane of tiles of a TileMap. A map
+    has a collision layer (see TileMap.getCollisionLayer()), whose
+    tiles are solid, and any number of other layers for
+    decoration behind or in front of it. Every layer of a map has
+    the same size and shares the map's palette of tile Images.
+    Decor layers written in a map file (see TextMapSource) are
+    added to the map and streamed by its RegionStreamer.
+
+    <p>Like the map, a layer stores its tiles as palette ids in
+    regions of TileMap.REGION_WIDTH columns, and a region can be
+    unloaded to free its tiles.
+
+    <p>The tiles can be read on another thread than the one
+    changing them (like the render thread in pipelined mode). A
+    region set with setRegion() is published whole, so a reader
+    sees either the old or the new tiles of a region, never a
+    partly filled array; a single tile set with setTileId() may
+    take a frame to show. Listeners can be added and removed on
+    such a thread too; they are called on the thread that
+    changed the tiles.
+
+    <p>A layer is either static or animated. The tiles of a
+    static layer rarely change, so the renderer pre-renders them
+    once and draws the cached images every frame. An animated
+    layer has tiles that change all the time (like water or
+    torches) and is drawn a tile at a time instead, so it doesn't
+    re-render its cache every frame.
+*/
+public class TileLayer {
+
+    private TileMap map;
+    private boolean animated;
+    private AtomicReferenceArray<short[]> regions;
+    private ArrayList<TileMap.TileListener> tileListeners;
+
+    /**
+        Creates a new TileLayer for the specified TileMap, with
+        every tile empty. Add it to the map with
+        TileMap.addLayer().
+    */
+    public TileLayer(TileMap map, boolean animated) {
+        this(map, animated, true);
+    }
+
+
+    /**
+        Creates a new TileLayer for the specified TileMap, with
+        every tile empty. If loaded is false, every region starts
+        unloaded, to be filled in with setRegion().
+    */
+    public TileLayer(TileMap map, boolean animated, boolean loaded) {
+        this.map = map;
+        this.animated = animated;
+        int height = map.getHeight();
+        regions = new AtomicReferenceArray<short[]>(
+            (map.getWidth() + TileMap.REGION_WIDTH - 1) /
+            TileMap.REGION_WIDTH);
+        if (loaded) {
+            for (int i=0; i<regions.length(); i++) {
+                regions.set(i, new short[TileMap.REGION_WIDTH * height]);
+            }
+        }
+        tileListeners = new ArrayList<TileMap.TileListener>();
+    }
+
+
+    /**
+        Gets the TileMap this layer was created for.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Checks if the tiles of this layer change all the time, so
+        it shouldn't be cached.
+    */
+    public boolean isAnimated() {
+        return animated;
+    }
+
+
+    /**
+        Sets whether the tiles of this layer change all the time.
+    */
+    public void setAnimated(boolean animated) {
+        this.animated = animated;
+    }
+
+
+    /**
+        Gets the tile at the specified location. Returns null if
+        no tile is at the location or if the location is out of
+        bounds.
+    */
+    public Image getTile(int x, int y) {
+        return map.getPaletteImage(getTileId(x, y));
+    }
+
+
+    /**
+        Sets the tile at the specified location, adding the Image
+        to the map's palette if it isn't in it yet.
+    */
+    public void setTile(int x, int y, Image tile) {
+        setTileId(x, y, map.getPaletteId(tile));
+    }
+
+
+    /**
+        Gets the palette id of the tile at the specified
+        location. Returns 0 if no tile is at the location or if
+        the location is out of bounds.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= map.getWidth() || y < 0 ||
+            y >= map.getHeight())
+        {
+            return 0;
+        }
+        short[] region = regions.get(x / TileMap.REGION_WIDTH);
+        if (region == null) {
+            return 0;
+        }
+        return region[y * TileMap.REGION_WIDTH +
+            x % TileMap.REGION_WIDTH] & 0xffff;
+    }
+
+
+    /**
+        Sets the palette id of the tile at the specified
+        location. The id must already be in the palette, and the
+        region of the tile must be loaded.
+    */
+    public void setTileId(int x, int y, int id) {
+        if (x < 0 || x >= map.getWidth() || y < 0 ||
+            y >= map.getHeight())
+        {
+            throw new IndexOutOfBoundsException(
+                "No tile at (" + x + ", " + y + ")");
+        }
+        if (id < 0 || id >= map.getPaletteSize()) {
+            throw new IllegalArgumentException(
+                "No palette id " + id);
+        }
+        short[] region = regions.get(x / TileMap.REGION_WIDTH);
+        if (region == null) {
+            throw new IllegalStateException(
+                "Region of (" + x + ", " + y + ") isn't loaded");
+        }
+        region[y * TileMap.REGION_WIDTH + x % TileMap.REGION_WIDTH] =
+            (short)id;
+        map.layerTileChanged(this, x, y, id);
+        synchronized (tileListeners) {
+            for (int i=0; i<tileListeners.size(); i++) {
+                tileListeners.get(i).tileChanged(x, y);
+            }
+        }
+    }
+
+
+    /**
+        Checks if the specified region is loaded.
+    */
+    public boolean isRegionLoaded(int region) {
+        return regions.get(region) != null;
+    }
+
+
+    /**
+        Sets the tiles of a region, as palette ids in row-major
+        order (REGION_WIDTH * getHeight() of them; columns past the
+        right edge of the map are ignored). The ids must already be
+        in the palette. The array is kept by this layer, not
+        copied. If tiles is null, the region is unloaded. Listeners
+        are notified of every tile that changed.
+    */
+    public void setRegion(int region, short[] tiles) {
+        int height = map.getHeight();
+        if (tiles != null &&
+            tiles.length != TileMap.REGION_WIDTH * height)
+        {
+            throw new IllegalArgumentException("A region has " +
+                (TileMap.REGION_WIDTH * height) + " tiles");
+        }
+        short[] oldTiles = regions.getAndSet(region, tiles);
+        map.layerRegionChanged(this, region, tiles);
+        synchronized (tileListeners) {
+            if (tileListeners.isEmpty()) {
+                return;
+            }
+
+            int firstX = region * TileMap.REGION_WIDTH;
+            int numColumns = Math.min(TileMap.REGION_WIDTH,
+                map.getWidth() - firstX);
+            for (int y=0; y<height; y++) {
+                for (int x=0; x<numColumns; x++) {
+                    int i = y * TileMap.REGION_WIDTH + x;
+                    int id = (tiles == null) ? 0 : tiles[i] & 0xffff;
+                    int oldId = (oldTiles == null) ? 0 :
+                        oldTiles[i] & 0xffff;
+                    if (id != oldId) {
+                        for (int j=0; j<tileListeners.size(); j++) {
+                            tileListeners.get(j).tileChanged(firstX + x,
+                                y);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Adds a TileListener that is notified whenever a tile
+        of this layer changes.
+    */
+    public void addTileListener(TileMap.TileListener tileListener) {
+        synchronized (tileListeners) {
+            tileListeners.add(tileListener);
+        }
+    }
+
+
+    /**
+        Removes a TileListener added with addTileListener().
+    */
+    public void removeTileListener(TileMap.TileListener tileListener) {
+        synchronized (tileListeners) {
+            tileListeners.remove(tileListener);
+        }
+    }
+}
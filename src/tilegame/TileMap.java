@@ -1,9 +1,12 @@
 package tilegame;
 
 import java.awt.Image;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 import graphics.Sprite;
+import sprites.Creature;
 
 import java.util.Iterator;
 
@@ -12,12 +15,70 @@ import java.util.Iterator;
     map, including Sprites. Each tile is a reference to an
     Image. Of course, Images are used multiple times in the tile
     map.
+
+    <p>The tiles are stored as ids into a palette of Images, in
+    row-major arrays of shorts (two bytes per tile instead of a
+    reference), so a row of tiles is contiguous in memory.
+    Id 0 is no tile. getTile() and setTile() work with the Images
+    and manage the palette; getTileId() and setTileId() work with
+    the ids directly. A palette holds up to MAX_PALETTE_SIZE
+    Images, including the empty tile. The palette is copied when
+    an Image is added, so it can be read on another thread (like
+    the render thread in pipelined mode) while the game thread
+    adds tiles.
+
+    <p>The columns of the map are split into regions of
+    REGION_WIDTH tiles, each with its own array. A region can be
+    unloaded to free its tiles (see setRegion()), so only the
+    part of a long level around the player has to be in memory.
+    The tiles of an unloaded region are empty.
+
+    <p>The tiles are kept in TileLayers, drawn back to front in
+    the order of getLayer(). One of them is the collision layer,
+    which is the layer getTile(), setTile() and setRegion() work
+    with. The layers before it are drawn behind the Sprites, and
+    the layers after it are drawn in front of them.
+
+    <p>Every tile of the collision layer that isn't null is
+    solid; the other layers are only decoration.
+
+    <p>The Sprites of the map (not the player) are kept in a
+    SpatialHash with cells the size of a tile, which follows the
+    Sprites as they move. Use getSpriteIndex() to find the
+    Sprites near a place instead of looking at every Sprite.
+
+    <p>The map keeps the solid tiles in a bitset (a span of
+    longs per row), so collision queries over a range of tiles
+    test 64 tiles at a time instead of looking at each tile.
 */
 public class TileMap {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    /**
+        The most Images a palette can hold, including the empty
+        tile (id 0).
+    */
+    public static final int MAX_PALETTE_SIZE = 1 << 16;
+
+    /**
+        The width of a region, in tiles. A row of a region is one
+        word of the solidity bitset.
+    */
+    public static final int REGION_WIDTH = 64;
+
+    private int width;
+    private int height;
+    private ArrayList<TileLayer> layers;
+    private TileLayer collisionLayer;
+    private volatile Image[] palette;
+    private IdentityHashMap<Image, Integer> paletteIds;
+    private SpriteStore sprites;
+    private SpatialHash spriteIndex;
     private Sprite player;
+
+    // solid tiles: bit x of row y is bit (x & 63) of
+    // solid[y * wordsPerRow + (x >> 6)]
+    private long[] solid;
+    private int wordsPerRow;
     
     private Image background;
     private Image background_mid;
@@ -28,8 +89,31 @@ public class TileMap {
         height (in number of tiles) of the map.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
+        this(width, height, true);
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map. If loaded is
+        false, every region starts unloaded, to be filled in with
+        setRegion().
+    */
+    public TileMap(int width, int height, boolean loaded) {
+        this.width = width;
+        this.height = height;
+        palette = new Image[1];
+        paletteIds = new IdentityHashMap<Image, Integer>();
+        sprites = new SpriteStore();
+        spriteIndex = new SpatialHash(
+            TileMapRenderer.tilesToPixels(width),
+            TileMapRenderer.tilesToPixels(height),
+            TileMapRenderer.tilesToPixels(1));
+        wordsPerRow = (width + 63) >> 6;
+        solid = new long[wordsPerRow * height];
+        collisionLayer = new TileLayer(this, false, loaded);
+        layers = new ArrayList<TileLayer>();
+        layers.add(collisionLayer);
     }
 
 
@@ -37,7 +121,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -45,32 +129,377 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
     }
 
 
     /**
-        Gets the tile at the specified location. Returns null if
-        no tile is at the location or if the location is out of
-        bounds.
+        Gets the tile of the collision layer at the specified
+        location. Returns null if no tile is at the location or if
+        the location is out of bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
-            return null;
+        return collisionLayer.getTile(x, y);
+    }
+
+
+    /**
+        Sets the tile of the collision layer at the specified
+        location, adding the Image to the palette if it isn't in
+        it yet.
+    */
+    public void setTile(int x, int y, Image tile) {
+        collisionLayer.setTile(x, y, tile);
+    }
+
+
+    /**
+        Gets the palette id of the tile of the collision layer at
+        the specified location. Returns 0 if no tile is at the
+        location or if the location is out of bounds.
+    */
+    public int getTileId(int x, int y) {
+        return collisionLayer.getTileId(x, y);
+    }
+
+
+    /**
+        Sets the palette id of the tile of the collision layer at
+        the specified location. The id must already be in the
+        palette, and the region of the tile must be loaded.
+    */
+    public void setTileId(int x, int y, int id) {
+        collisionLayer.setTileId(x, y, id);
+    }
+
+
+    /**
+        Gets the number of regions of this map.
+    */
+    public int getNumRegions() {
+        return (width + REGION_WIDTH - 1) / REGION_WIDTH;
+    }
+
+
+    /**
+        Checks if the specified region of the collision layer is
+        loaded.
+    */
+    public boolean isRegionLoaded(int region) {
+        return collisionLayer.isRegionLoaded(region);
+    }
+
+
+    /**
+        Sets the tiles of a region of the collision layer (see
+        TileLayer.setRegion()). If tiles is null, the region is
+        unloaded.
+    */
+    public void setRegion(int region, short[] tiles) {
+        collisionLayer.setRegion(region, tiles);
+    }
+
+
+    /**
+        Gets the number of layers of this map, including the
+        collision layer.
+    */
+    public int getNumLayers() {
+        return layers.size();
+    }
+
+
+    /**
+        Gets the layer at the specified index. Layers are drawn
+        from index 0 (the back) up.
+    */
+    public TileLayer getLayer(int index) {
+        return layers.get(index);
+    }
+
+
+    /**
+        Gets the index of a layer, or -1 if it isn't a layer of
+        this map.
+    */
+    public int indexOfLayer(TileLayer layer) {
+        return layers.indexOf(layer);
+    }
+
+
+    /**
+        Gets the collision layer: the layer whose tiles are
+        solid.
+    */
+    public TileLayer getCollisionLayer() {
+        return collisionLayer;
+    }
+
+
+    /**
+        Gets the index of the collision layer. The layers below
+        it are drawn behind the Sprites, the others in front.
+    */
+    public int getCollisionLayerIndex() {
+        return layers.indexOf(collisionLayer);
+    }
+
+
+    /**
+        Adds a layer in front of all the others (and so in front
+        of the Sprites). The layer must have been created for
+        this map.
+    */
+    public void addLayer(TileLayer layer) {
+        addLayer(layers.size(), layer);
+    }
+
+
+    /**
+        Adds a layer at the specified index. To add a layer
+        behind the Sprites, use an index up to
+        getCollisionLayerIndex(). The layer must have been created
+        for this map.
+    */
+    public void addLayer(int index, TileLayer layer) {
+        if (layer.getMap() != this) {
+            throw new IllegalArgumentException(
+                "Layer belongs to another map");
+        }
+        if (layers.contains(layer)) {
+            throw new IllegalArgumentException(
+                "Layer is already in the map");
+        }
+        layers.add(index, layer);
+    }
+
+
+    /**
+        Removes a layer. The collision layer can't be removed.
+    */
+    public void removeLayer(TileLayer layer) {
+        if (layer == collisionLayer) {
+            throw new IllegalArgumentException(
+                "Can't remove the collision layer");
+        }
+        layers.remove(layer);
+    }
+
+
+    /**
+        Called by a layer after one of its tiles changed, before
+        its listeners are notified. Keeps the solid bits of the
+        collision layer up to date.
+    */
+    void layerTileChanged(TileLayer layer, int x, int y, int id) {
+        if (layer != collisionLayer) {
+            return;
+        }
+        long bit = 1L << (x & 63);
+        if (id != 0) {
+            solid[y * wordsPerRow + (x >> 6)] |= bit;
         }
         else {
-            return tiles[x][y];
+            solid[y * wordsPerRow + (x >> 6)] &= ~bit;
         }
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Called by a layer after the tiles of one of its regions
+        were set, before its listeners are notified.
     */
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+    void layerRegionChanged(TileLayer layer, int region,
+        short[] tiles)
+    {
+        if (layer != collisionLayer) {
+            return;
+        }
+        int numColumns = Math.min(REGION_WIDTH,
+            width - region * REGION_WIDTH);
+        for (int y=0; y<height; y++) {
+            // a row of a region is one word of the bitset
+            long bits = 0;
+            if (tiles != null) {
+                for (int x=0; x<numColumns; x++) {
+                    if (tiles[y * REGION_WIDTH + x] != 0) {
+                        bits |= 1L << x;
+                    }
+                }
+            }
+            solid[y * wordsPerRow + region] = bits;
+        }
+    }
+
+
+    /**
+        Gets the palette id of an Image, adding it to the palette
+        if it isn't in it yet. The id of null (no tile) is 0.
+    */
+    public int getPaletteId(Image tile) {
+        if (tile == null) {
+            return 0;
+        }
+        Integer id = paletteIds.get(tile);
+        if (id == null) {
+            Image[] oldPalette = palette;
+            if (oldPalette.length == MAX_PALETTE_SIZE) {
+                throw new IllegalStateException("Tile palette is full");
+            }
+            id = oldPalette.length;
+            Image[] newPalette = Arrays.copyOf(oldPalette, id + 1);
+            newPalette[id] = tile;
+            palette = newPalette;
+            paletteIds.put(tile, id);
+        }
+        return id;
+    }
+
+
+    /**
+        Gets the Image with the specified palette id, or null for
+        id 0. Also returns null for an id that isn't in the
+        palette yet, which another thread can see for a moment
+        after a tile was set.
+    */
+    public Image getPaletteImage(int id) {
+        Image[] palette = this.palette;
+        return (id < palette.length) ? palette[id] : null;
+    }
+
+
+    /**
+        Gets the number of ids in the palette, including id 0.
+    */
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Returns false if the location is out of bounds.
+    */
+    public boolean isSolid(int x, int y) {
+        if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight()) {
+            return false;
+        }
+        return (solid[y * wordsPerRow + (x >> 6)] &
+            (1L << (x & 63))) != 0;
+    }
+
+
+    /**
+        Checks if any tile from (x1, y1) to (x2, y2) (inclusive)
+        is solid. Tiles out of bounds are not solid.
+    */
+    public boolean anySolid(int x1, int y1, int x2, int y2) {
+        return firstSolidY(x1, y1, x2, y2) != -1;
+    }
+
+
+    /**
+        Gets the leftmost column from x1 to x2 that has a solid
+        tile in rows y1 to y2 (inclusive), or -1 if there is none.
+        Tiles out of bounds are not solid.
+    */
+    public int firstSolidX(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(x1, 0);
+        x2 = Math.min(x2, getWidth() - 1);
+        y1 = Math.max(y1, 0);
+        y2 = Math.min(y2, getHeight() - 1);
+        if (x1 > x2 || y1 > y2) {
+            return -1;
+        }
+        for (int w=x1>>6; w<=x2>>6; w++) {
+            long bits = getColumnBits(w, x1, x2, y1, y2);
+            if (bits != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Gets the top row from y1 to y2 that has a solid tile in
+        columns x1 to x2 (inclusive), or -1 if there is none.
+        Tiles out of bounds are not solid.
+    */
+    public int firstSolidY(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(x1, 0);
+        x2 = Math.min(x2, getWidth() - 1);
+        y1 = Math.max(y1, 0);
+        y2 = Math.min(y2, getHeight() - 1);
+        if (x1 > x2) {
+            return -1;
+        }
+        for (int y=y1; y<=y2; y++) {
+            if (isRowSolid(y, x1, x2)) {
+                return y;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Checks if row y has a solid tile from x1 to x2, which
+        must be in bounds.
+    */
+    private boolean isRowSolid(int y, int x1, int x2) {
+        int offset = y * wordsPerRow;
+        for (int w=x1>>6; w<=x2>>6; w++) {
+            if ((solid[offset + w] & getMask(w, x1, x2)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Gets word w of rows y1 to y2 ORed together, keeping only
+        the bits of columns x1 to x2.
+    */
+    private long getColumnBits(int w, int x1, int x2, int y1, int y2) {
+        long bits = 0;
+        for (int y=y1; y<=y2; y++) {
+            bits |= solid[y * wordsPerRow + w];
+        }
+        return bits & getMask(w, x1, x2);
+    }
+
+
+    /**
+        Gets the bits of word w that are from column x1 to x2.
+    */
+    private static long getMask(int w, int x1, int x2) {
+        long mask = -1L;
+        if (x1 > w << 6) {
+            mask &= -1L << (x1 & 63);
+        }
+        if (x2 < (w << 6) + 63) {
+            mask &= -1L >>> (63 - (x2 & 63));
+        }
+        return mask;
+    }
+
+
+    /**
+        Adds a TileListener that is notified whenever a tile
+        of the collision layer changes.
+    */
+    public void addTileListener(TileListener tileListener) {
+        collisionLayer.addTileListener(tileListener);
+    }
+
+
+    /**
+        Removes a TileListener added with addTileListener().
+    */
+    public void removeTileListener(TileListener tileListener) {
+        collisionLayer.removeTileListener(tileListener);
     }
 
 
@@ -87,6 +516,7 @@ public class TileMap {
     */
     public void setPlayer(Sprite player) {
         this.player = player;
+        player.savePosition();
     }
 
 
@@ -107,10 +537,13 @@ public class TileMap {
     }
     
     /**
-        Adds a Sprite object to this map.
+        Adds a Sprite object to this map, and returns its handle
+        (see getSprite(int)).
     */
-    public void addSprite(Sprite sprite) {
-        sprites.add(sprite);
+    public int addSprite(Sprite sprite) {
+        sprite.savePosition();
+        spriteIndex.add(sprite);
+        return sprites.add(sprite);
     }
 
 
@@ -118,16 +551,111 @@ public class TileMap {
         Removes a Sprite object from this map.
     */
     public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+        if (sprites.remove(sprite)) {
+            spriteIndex.remove(sprite);
+        }
+    }
+
+
+    /**
+        Gets the SpatialHash of the Sprites in this map, excluding
+        the player Sprite. It is updated as Sprites are added,
+        removed and moved; after a Sprite changes size, call its
+        update() method.
+    */
+    public SpatialHash getSpriteIndex() {
+        return spriteIndex;
     }
 
 
     /**
         Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        excluding the player Sprite. Creatures come first.
+    */
+    public Iterator<Sprite> getSprites() {
+        final Iterator<Sprite> i = sprites.iterator();
+        return new Iterator<Sprite>() {
+
+            private Sprite last;
+
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            public Sprite next() {
+                last = i.next();
+                return last;
+            }
+
+            public void remove() {
+                i.remove();
+                spriteIndex.remove(last);
+            }
+        };
+    }
+
+
+    /**
+        Gets the Sprite with the specified handle (returned by
+        addSprite()), or null if it was removed from this map.
+    */
+    public Sprite getSprite(int handle) {
+        return sprites.get(handle);
+    }
+
+
+    /**
+        Checks if a Sprite is in this map.
+    */
+    public boolean containsSprite(Sprite sprite) {
+        return sprites.contains(sprite);
+    }
+
+
+    /**
+        Gets the number of Sprites in this map, excluding the
+        player Sprite.
+    */
+    public int getNumSprites() {
+        return sprites.size();
+    }
+
+
+    /**
+        Gets the Sprite at the specified index, from 0 to
+        getNumSprites() - 1. The Creatures are at the indices
+        below getNumCreatures(). Indices change when Sprites are
+        removed.
+    */
+    public Sprite getSpriteAt(int index) {
+        return sprites.getAt(index);
+    }
+
+
+    /**
+        Gets the number of Creatures in this map, excluding the
+        player Sprite.
+    */
+    public int getNumCreatures() {
+        return sprites.getNumCreatures();
+    }
+
+
+    /**
+        Gets the Creature at the specified index, from 0 to
+        getNumCreatures() - 1.
+    */
+    public Creature getCreature(int index) {
+        return sprites.getCreature(index);
+    }
+
+
+    /**
+        A TileListener is notified when a tile of a TileMap (or
+        of a TileLayer) is changed with setTile().
     */
-    public Iterator getSprites() {
-        return sprites.iterator();
+    public interface TileListener {
+        public void tileChanged(int x, int y);
     }
 
 }
@@ -1,20 +1,37 @@
 package tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
+import java.util.ArrayList;
 
+import graphics.AtlasRegion;
 import graphics.Sprite;
 import sprites.Creature;
 
 /**
     The TileMapRenderer class draws a TileMap on the screen.
-    It draws all tiles, sprites, and an optional background image
+    It draws all tiles, sprites, and optional background layers
     centered around the position of the player.
 
-    <p>If the width of background image is smaller the width of
+    <p>The background layers are drawn by a ParallaxBackground.
+    If the width of a background image is smaller the width of
     the tile map, the background image will appear to move
     slowly, creating a parallax background effect.
 
+    <p>The layers of the map are drawn back to front, with the
+    Sprites drawn right after the collision layer. Optionally,
+    the tiles can be drawn from a TileChunkCache, which blits a
+    few pre-rendered chunks of tiles instead of every visible
+    tile. Each static layer gets its own cache, so decoration
+    layers cost a few blits per frame; animated layers are
+    always drawn a tile at a time.
+
+    <p>Only the Sprites near the screen are drawn. They are
+    found with the map's sprite index (see TileMap.getSpriteIndex()).
+
+    <p>Drawing is split in two steps: capture() records what to
+    draw in a RenderSnapshot, and draw() draws the snapshot.
+    This lets a separate thread draw while the game updates.
+
     <p>Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
 
@@ -27,10 +44,21 @@ public class TileMapRenderer {
     // Math.pow(2, TILE_SIZE_BITS) == TILE_SIZE
     private static final int TILE_SIZE_BITS = 6;
 
-    private Image background;
-    
-    private Image background_mid;
-    private Image background_front;
+    private ParallaxBackground background;
+
+    private boolean chunkCacheEnabled;
+    // one cache for each static layer drawn
+    private ArrayList<TileChunkCache> chunkCaches =
+        new ArrayList<TileChunkCache>();
+
+    // sprites within this many pixels of the screen are drawn
+    private static final int CULL_MARGIN = TILE_SIZE;
+
+    private Sprite[] visibleSprites = new Sprite[64];
+    private int numVisibleSprites;
+
+    // snapshot used when drawing a map directly
+    private RenderSnapshot snapshot = new RenderSnapshot();
 
     /**
         Converts a pixel position to a tile position.
@@ -68,12 +96,58 @@ public class TileMapRenderer {
 
 
     /**
-        Sets the background to draw.
+        Sets the background to draw: the back (sky), mid
+        (mountains) and front (castles) layers. Any of them may
+        be null.
     */
     public void setBackground(Image background, Image background_mid, Image background_front) {
+        ParallaxBackground parallax = new ParallaxBackground();
+        parallax.addLayer(background);
+        parallax.addLayer(background_mid);
+        parallax.addLayer(background_front);
+        this.background = parallax;
+    }
+
+
+    /**
+        Sets the background layers to draw.
+    */
+    public void setBackground(ParallaxBackground background) {
         this.background = background;
-        this.background_mid = background_mid;
-        this.background_front = background_front;
+    }
+
+
+    /**
+        Gets the background layers, or null if there is no
+        background.
+    */
+    public ParallaxBackground getBackground() {
+        return background;
+    }
+
+
+    /**
+        Sets whether tiles are drawn from pre-rendered chunks
+        (see TileChunkCache) instead of one at a time.
+    */
+    public void setChunkCacheEnabled(boolean chunkCacheEnabled) {
+        this.chunkCacheEnabled = chunkCacheEnabled;
+        if (!chunkCacheEnabled) {
+            for (int i=0; i<chunkCaches.size(); i++) {
+                TileChunkCache chunkCache = chunkCaches.get(i);
+                chunkCache.getLayer().removeTileListener(chunkCache);
+                chunkCache.flush();
+            }
+            chunkCaches.clear();
+        }
+    }
+
+
+    /**
+        Checks whether tiles are drawn from pre-rendered chunks.
+    */
+    public boolean isChunkCacheEnabled() {
+        return chunkCacheEnabled;
     }
 
 
@@ -82,6 +156,33 @@ public class TileMapRenderer {
     */
     public void draw(Graphics2D g, TileMap map,
         int screenWidth, int screenHeight)
+    {
+        capture(snapshot, map, screenWidth, screenHeight);
+        draw(g, snapshot);
+    }
+
+
+    /**
+        Fills a RenderSnapshot with everything needed to draw the
+        specified TileMap: the scroll position and the Sprites
+        near the screen. Creatures that are on screen are woken
+        up. This should be called on the thread that updates the
+        game.
+    */
+    public void capture(RenderSnapshot snapshot, TileMap map,
+        int screenWidth, int screenHeight)
+    {
+        capture(snapshot, map, screenWidth, screenHeight, 1);
+    }
+
+
+    /**
+        Fills a RenderSnapshot like capture(), but places the
+        Sprites (and the view) in between their previous and
+        current positions. See Sprite.getInterpolatedX().
+    */
+    public void capture(RenderSnapshot snapshot, TileMap map,
+        int screenWidth, int screenHeight, float interpolation)
     {
         Sprite player = map.getPlayer();
         int mapWidth = tilesToPixels(map.getWidth());
@@ -89,7 +190,8 @@ public class TileMapRenderer {
         // get the scrolling position of the map
         // based on player's position
         int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
+            Math.round(player.getInterpolatedX(interpolation)) -
+            TILE_SIZE;
         offsetX = Math.min(offsetX, 0);
         offsetX = Math.max(offsetX, screenWidth - mapWidth);
 
@@ -97,75 +199,191 @@ public class TileMapRenderer {
         int offsetY = screenHeight -
             tilesToPixels(map.getHeight());
 
-        // draw black background, if needed
-        if (background == null ||
-            screenHeight > background.getHeight(null))
-        {
+        snapshot.map = map;
+        snapshot.captureLayers();
+        snapshot.background = background;
+        snapshot.mapWidth = mapWidth;
+        snapshot.offsetX = offsetX;
+        snapshot.offsetY = offsetY;
+        snapshot.screenWidth = screenWidth;
+        snapshot.screenHeight = screenHeight;
+
+        // player is drawn first, then the sprites near the screen
+        snapshot.clearSprites();
+        snapshot.addSprite(player,
+            Math.round(player.getInterpolatedX(interpolation)) +
+                offsetX,
+            Math.round(player.getInterpolatedY(interpolation)) +
+                offsetY);
+        findVisibleSprites(map, offsetX, offsetY,
+            screenWidth, screenHeight);
+        for (int i=0; i<numVisibleSprites; i++) {
+            Sprite sprite = visibleSprites[i];
+            snapshot.addSprite(sprite,
+                Math.round(sprite.getInterpolatedX(interpolation)) +
+                    offsetX,
+                Math.round(sprite.getInterpolatedY(interpolation)) +
+                    offsetY);
+        }
+
+        wakeUpCreatures(offsetX, screenWidth);
+    }
+
+
+    /**
+        Draws a RenderSnapshot. This can be called on a different
+        thread than capture(). The Sprites and the view come from
+        the snapshot, but the tiles aren't copied into it: they
+        are read from the layers of its map, which allow that
+        while the game thread changes them (see TileLayer).
+    */
+    public void draw(Graphics2D g, RenderSnapshot snapshot) {
+        int offsetX = snapshot.offsetX;
+        int offsetY = snapshot.offsetY;
+        int screenWidth = snapshot.screenWidth;
+        int screenHeight = snapshot.screenHeight;
+
+        // draw parallax background layers (or black)
+        if (snapshot.background != null) {
+            snapshot.background.draw(g, offsetX, snapshot.mapWidth,
+                screenWidth, screenHeight);
+        }
+        else {
             g.setColor(Color.black);
             g.fillRect(0, 0, screenWidth, screenHeight);
         }
 
-        // draw parallax background image
-        if (background != null) {
-            int x = offsetX *
-                (screenWidth - background.getWidth(null)) /
-                (screenWidth - mapWidth);
-            int y = screenHeight - background.getHeight(null);
-
-            g.drawImage(background, x, y, null);
+        // draw the layers behind the sprites
+        releaseChunkCaches(snapshot);
+        for (int i=0; i<=snapshot.collisionLayer; i++) {
+            drawLayer(g, snapshot, i);
         }
-        
-        if(background_mid!=null){
-        	//System.out.println("MAP width = "+map.getWidth()+"in pixels = "+tilesToPixels(map.getWidth())+"Background width ="+background.getWidth(null));
-        	int x = offsetX *
-                    (screenWidth - background_mid.getWidth(null)) /
-                    (screenWidth - mapWidth);
-                int y = screenHeight - background_mid.getHeight(null);
-
-                g.drawImage(background_mid, x, y, null);
+
+        // draw player and sprites
+        for (int i=0; i<snapshot.numSprites; i++) {
+            AtlasRegion region = snapshot.regions[i];
+            if (region != null) {
+                region.draw(g, snapshot.x[i], snapshot.y[i]);
+            }
+            else {
+                g.drawImage(snapshot.images[i],
+                    snapshot.x[i], snapshot.y[i], null);
+            }
         }
-        
-        if(background_front!=null){
-        	
-        	int x = offsetX *
-                    (screenWidth - background_front.getWidth(null)) /
-                    (screenWidth - mapWidth);
-                int y = screenHeight - background_front.getHeight(null);
-
-                g.drawImage(background_front, x, y, null);
+
+        // draw the layers in front of the sprites
+        for (int i=snapshot.collisionLayer+1; i<snapshot.numLayers; i++) {
+            drawLayer(g, snapshot, i);
         }
+    }
 
-        // draw the visible tiles
-        int firstTileX = pixelsToTiles(-offsetX);
-        int lastTileX = firstTileX +
-            pixelsToTiles(screenWidth) + 1;
-        for (int y=0; y<map.getHeight(); y++) {
-            for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
-                if (image != null) {
-                    g.drawImage(image,
-                        tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
-                        null);
+
+    /**
+        Draws the visible tiles of a layer of a snapshot.
+    */
+    private void drawLayer(Graphics2D g, RenderSnapshot snapshot,
+        int index)
+    {
+        TileLayer layer = snapshot.layers[index];
+        int offsetX = snapshot.offsetX;
+        int offsetY = snapshot.offsetY;
+        int screenWidth = snapshot.screenWidth;
+        int screenHeight = snapshot.screenHeight;
+
+        if (chunkCacheEnabled && !layer.isAnimated()) {
+            getChunkCache(layer).draw(g, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            int firstTileX = pixelsToTiles(-offsetX);
+            int lastTileX = firstTileX +
+                pixelsToTiles(screenWidth) + 1;
+            for (int y=0; y<snapshot.map.getHeight(); y++) {
+                for (int x=firstTileX; x <= lastTileX; x++) {
+                    Image image = layer.getTile(x, y);
+                    if (image != null) {
+                        g.drawImage(image,
+                            tilesToPixels(x) + offsetX,
+                            tilesToPixels(y) + offsetY,
+                            null);
+                    }
                 }
             }
         }
+    }
 
-        // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
 
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
+    /**
+        Gets the chunk cache of a layer, creating it if needed.
+    */
+    private TileChunkCache getChunkCache(TileLayer layer) {
+        for (int i=0; i<chunkCaches.size(); i++) {
+            if (chunkCaches.get(i).getLayer() == layer) {
+                return chunkCaches.get(i);
+            }
+        }
+        TileChunkCache chunkCache = new TileChunkCache(layer);
+        chunkCaches.add(chunkCache);
+        return chunkCache;
+    }
+
+
+    /**
+        Releases the chunk caches of the layers that aren't
+        drawn anymore: layers of another map, layers removed
+        from the map, and layers that became animated.
+    */
+    private void releaseChunkCaches(RenderSnapshot snapshot) {
+        for (int i=chunkCaches.size()-1; i>=0; i--) {
+            TileChunkCache chunkCache = chunkCaches.get(i);
+            TileLayer layer = chunkCache.getLayer();
+            boolean drawn = false;
+            for (int j=0; j<snapshot.numLayers && !drawn; j++) {
+                drawn = (snapshot.layers[j] == layer);
+            }
+            if (!drawn || layer.isAnimated()) {
+                layer.removeTileListener(chunkCache);
+                chunkCache.flush();
+                chunkCaches.remove(i);
+            }
+        }
+    }
+
 
-            // wake up the creature when it's on screen
+    /**
+        Fills the visibleSprites array with the Sprites that
+        intersect the screen, plus a margin.
+    */
+    private void findVisibleSprites(TileMap map, int offsetX,
+        int offsetY, int screenWidth, int screenHeight)
+    {
+        int x = -offsetX - CULL_MARGIN;
+        int y = -offsetY - CULL_MARGIN;
+        int width = screenWidth + CULL_MARGIN * 2;
+        int height = screenHeight + CULL_MARGIN * 2;
+        int oldNumVisible = numVisibleSprites;
+        numVisibleSprites = map.getSpriteIndex().query(x, y,
+            width, height, visibleSprites);
+        if (numVisibleSprites > visibleSprites.length) {
+            visibleSprites = new Sprite[numVisibleSprites * 2];
+            map.getSpriteIndex().query(x, y, width, height,
+                visibleSprites);
+        }
+        // don't keep the sprites that went away
+        for (int i=numVisibleSprites; i<oldNumVisible; i++) {
+            visibleSprites[i] = null;
+        }
+    }
+
+
+    /**
+        Wakes up the creatures in the visibleSprites array whose
+        left edge is on screen.
+    */
+    private void wakeUpCreatures(int offsetX, int screenWidth) {
+        for (int i=0; i<numVisibleSprites; i++) {
+            Sprite sprite = visibleSprites[i];
+            int x = Math.round(sprite.getX()) + offsetX;
             if (sprite instanceof Creature &&
                 x >= 0 && x < screenWidth)
             {
@@ -0,0 +1,197 @@
+package tilegame;
+
+/**
+    The TileSweep class moves a box (the bounds of a Sprite)
+    along a straight line through the tiles of a TileMap, and
+    finds the first solid tile it hits: the time of impact (from
+    0 to 1 along the move) and the normal of the side that was
+    hit. Since the whole path is tested, a fast move can't skip
+    over a tile, no matter how long the move is.
+
+    <p>The box steps from one tile boundary to the next along
+    its leading edges, so the cost is one solidity query per
+    column or row crossed. Columns left and right of the map are
+    solid; rows above and below it are not.
+
+    <p>The result of the last sweep is kept in this object, so
+    sweeping doesn't allocate anything.
+*/
+public class TileSweep {
+
+    private static final int TILE_SIZE = TileMapRenderer.tilesToPixels(1);
+
+    private float time;
+    private int normalX;
+    private int normalY;
+    private int tileX;
+    private int tileY;
+
+    /**
+        Sweeps a box at (x, y) of the specified size by (dx, dy).
+        Returns true if the box hits a solid tile on the way. The
+        box is hit when it would overlap a solid tile; touching a
+        tile isn't a hit.
+    */
+    public boolean sweep(TileMap map, float x, float y,
+        int width, int height, float dx, float dy)
+    {
+        // the next column and row the leading edges enter, and
+        // when they enter them
+        int stepX = (dx > 0) ? 1 : -1;
+        int stepY = (dy > 0) ? 1 : -1;
+        int col = 0;
+        int row = 0;
+        float timeX = Float.POSITIVE_INFINITY;
+        float timeY = Float.POSITIVE_INFINITY;
+        if (dx > 0) {
+            col = ceilTiles(x + width);
+            timeX = getEnterTimeX(col, x, width, dx);
+        }
+        else if (dx < 0) {
+            col = floorTiles(x) - 1;
+            timeX = getEnterTimeX(col, x, width, dx);
+        }
+        if (dy > 0) {
+            row = ceilTiles(y + height);
+            timeY = getEnterTimeY(row, y, height, dy);
+        }
+        else if (dy < 0) {
+            row = floorTiles(y) - 1;
+            timeY = getEnterTimeY(row, y, height, dy);
+        }
+
+        while (Math.min(timeX, timeY) <= 1) {
+            if (timeX <= timeY) {
+                // rows the box covers when it enters the column
+                float top = y + dy * timeX;
+                int row1 = floorTiles(top);
+                int row2 = ceilTiles(top + height) - 1;
+                if (isSolid(map, col, row1, col, row2)) {
+                    int hitRow = map.firstSolidY(col, row1, col, row2);
+                    setHit(timeX, -stepX, 0, col,
+                        (hitRow == -1) ? row1 : hitRow);
+                    return true;
+                }
+                col += stepX;
+                timeX = getEnterTimeX(col, x, width, dx);
+            }
+            else {
+                // columns the box covers when it enters the row
+                float left = x + dx * timeY;
+                int col1 = floorTiles(left);
+                int col2 = ceilTiles(left + width) - 1;
+                if (isSolid(map, col1, row, col2, row)) {
+                    int hitCol = map.firstSolidX(col1, row, col2, row);
+                    setHit(timeY, 0, -stepY,
+                        (hitCol == -1) ? col1 : hitCol, row);
+                    return true;
+                }
+                row += stepY;
+                timeY = getEnterTimeY(row, y, height, dy);
+            }
+        }
+
+        setHit(1, 0, 0, 0, 0);
+        return false;
+    }
+
+
+    /**
+        Gets the time of impact of the last sweep, from 0 (at the
+        start) to 1 (at the end, or no hit).
+    */
+    public float getTime() {
+        return time;
+    }
+
+
+    /**
+        Gets the x part of the normal of the side that was hit in
+        the last sweep: -1 (moving right, hit a tile's left side),
+        1 (moving left) or 0.
+    */
+    public int getNormalX() {
+        return normalX;
+    }
+
+
+    /**
+        Gets the y part of the normal of the side that was hit in
+        the last sweep: -1 (moving down, hit a tile's top side),
+        1 (moving up) or 0.
+    */
+    public int getNormalY() {
+        return normalY;
+    }
+
+
+    /**
+        Gets the x position (in tiles) of the tile hit in the last
+        sweep.
+    */
+    public int getTileX() {
+        return tileX;
+    }
+
+
+    /**
+        Gets the y position (in tiles) of the tile hit in the last
+        sweep.
+    */
+    public int getTileY() {
+        return tileY;
+    }
+
+
+    private void setHit(float time, int normalX, int normalY,
+        int tileX, int tileY)
+    {
+        this.time = time;
+        this.normalX = normalX;
+        this.normalY = normalY;
+        this.tileX = tileX;
+        this.tileY = tileY;
+    }
+
+
+    private float getEnterTimeX(int col, float x, int width, float dx) {
+        if (dx > 0) {
+            return (TileMapRenderer.tilesToPixels(col) - (x + width)) / dx;
+        }
+        else {
+            return (TileMapRenderer.tilesToPixels(col + 1) - x) / dx;
+        }
+    }
+
+
+    private float getEnterTimeY(int row, float y, int height, float dy) {
+        if (dy > 0) {
+            return (TileMapRenderer.tilesToPixels(row) - (y + height)) / dy;
+        }
+        else {
+            return (TileMapRenderer.tilesToPixels(row + 1) - y) / dy;
+        }
+    }
+
+
+    /**
+        Checks the tiles from (x1, y1) to (x2, y2) for a solid
+        tile. Columns outside the map are solid.
+    */
+    private static boolean isSolid(TileMap map, int x1, int y1,
+        int x2, int y2)
+    {
+        return x1 < 0 || x2 >= map.getWidth() ||
+            map.anySolid(x1, y1, x2, y2);
+    }
+
+
+    private static int floorTiles(float pixels) {
+        return (int)Math.floor(pixels / TILE_SIZE);
+    }
+
+
+    private static int ceilTiles(float pixels) {
+        return (int)Math.ceil(pixels / TILE_SIZE);
+    }
+}
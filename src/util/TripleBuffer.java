@@ -0,0 +1,95 @@
+package util;
+
+/**
+    A TripleBuffer passes objects (like frames of render data)
+    from one writer thread to one reader thread without either
+    of them waiting for the other to finish.
+
+    <p>The writer fills the write buffer and calls publish(). The
+    reader calls getReadBuffer() to get the most recently
+    published buffer. If the writer publishes several times
+    before the reader looks, the older buffers are skipped. The
+    writer and reader never hold the same buffer.
+*/
+public class TripleBuffer {
+
+    private Object[] buffers;
+    private int writeIndex;
+    private int readyIndex;
+    private int readIndex;
+    private boolean isFresh;
+
+    /**
+        Creates a new TripleBuffer with the three specified
+        buffers.
+    */
+    public TripleBuffer(Object buffer1, Object buffer2,
+        Object buffer3)
+    {
+        buffers = new Object[] { buffer1, buffer2, buffer3 };
+        writeIndex = 0;
+        readyIndex = 1;
+        readIndex = 2;
+    }
+
+
+    /**
+        Gets the buffer the writer should fill next.
+    */
+    public synchronized Object getWriteBuffer() {
+        return buffers[writeIndex];
+    }
+
+
+    /**
+        Publishes the write buffer to the reader. The writer gets
+        a different buffer to fill next.
+    */
+    public synchronized void publish() {
+        int index = readyIndex;
+        readyIndex = writeIndex;
+        writeIndex = index;
+        isFresh = true;
+        notifyAll();
+    }
+
+
+    /**
+        Checks if a buffer was published since the reader last
+        called getReadBuffer().
+    */
+    public synchronized boolean isFresh() {
+        return isFresh;
+    }
+
+
+    /**
+        Gets the most recently published buffer. If nothing was
+        published since the last call, the same buffer is
+        returned again.
+    */
+    public synchronized Object getReadBuffer() {
+        if (isFresh) {
+            int index = readIndex;
+            readIndex = readyIndex;
+            readyIndex = index;
+            isFresh = false;
+        }
+        return buffers[readIndex];
+    }
+
+
+    /**
+        Waits until a buffer is published and returns the most
+        recently published buffer. Returns null if nothing was
+        published before the timeout (in milliseconds) passed.
+    */
+    public synchronized Object waitForReadBuffer(long timeout)
+        throws InterruptedException
+    {
+        if (!isFresh) {
+            wait(timeout);
+        }
+        return (isFresh ? getReadBuffer() : null);
+    }
+}